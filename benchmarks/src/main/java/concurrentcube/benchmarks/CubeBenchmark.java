@@ -0,0 +1,140 @@
+package concurrentcube.benchmarks;
+
+import concurrentcube.Cube;
+import concurrentcube.CubeOptions;
+import concurrentcube.DeadlinePolicy;
+import concurrentcube.RoundRobinPolicy;
+import concurrentcube.SchedulingPolicy;
+import concurrentcube.ThroughputPolicy;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+// rotations and show() on one cube shared by the benchmark's threads
+// (set their number with -t, allocation is reported with -prof gc;
+// sample time gives latency percentiles of the scheduling policies);
+// the parameters default to a representative subset, others can be
+// given with -p (e.g. -p layerSpread=1,5000 -p policy=deadline)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CubeBenchmark {
+    @State(Scope.Benchmark)
+    public static class SharedCube {
+        @Param({"3", "100", "1000", "5000"})
+        int size;
+
+        // axes the rotations are on, picked evenly
+        @Param({"0", "1", "2", "012"})
+        String axes;
+
+        // how many different layers of an axis the rotations use
+        // (spread evenly over the axis, at most size)
+        @Param({"16"})
+        int layerSpread;
+
+        // percent of rotations which turn a face (layer 0 on any axis),
+        // turning sides which lines moved by the other axes lie on
+        @Param({"0", "1"})
+        int faceTurnPercent;
+
+        // percent of operations which are show()
+        @Param({"1"})
+        int showPercent;
+
+        // which group goes next when more of them wait, see SchedulingPolicy
+        @Param({"roundRobin", "throughput"})
+        String policy;
+
+        // how rotate() and show() get in: through the scheduler
+        // or by flat combining (see CubeOptions.flatCombining())
+        @Param({"scheduler", "flatCombining"})
+        String mode;
+
+        // how sides are laid out: by rows or for rotations on an axis
+        // (see CubeOptions.preferredAxis())
+        @Param({"rows", "0", "1", "2"})
+        String layout;
+
+        Cube cube;
+        int[] axisList;
+        int[] layers;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            CubeOptions options = new CubeOptions().schedulingPolicy(createPolicy(policy));
+            if (mode.equals("flatCombining")) {
+                options.flatCombining();
+            }
+            if (!layout.equals("rows")) {
+                options.preferredAxis(Integer.parseInt(layout));
+            }
+            cube = new Cube(size, (x, y) -> {}, (x, y) -> {}, () -> {}, () -> {}, options);
+            axisList = new int[axes.length()];
+            for (int i = 0; i < axisList.length; i++) {
+                axisList[i] = axes.charAt(i) - '0';
+            }
+            layers = new int[Math.min(layerSpread, size)];
+            for (int i = 0; i < layers.length; i++) {
+                layers[i] = (int) ((long) i * size / layers.length);
+            }
+        }
+    }
+
+    static SchedulingPolicy createPolicy(String name) {
+        switch (name) {
+            case "throughput":
+                return new ThroughputPolicy(1000, 4);
+            case "deadline":
+                return new DeadlinePolicy(TimeUnit.MILLISECONDS.toNanos(1));
+            default:
+                return new RoundRobinPolicy();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadRandom {
+        SplittableRandom random;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            random = new SplittableRandom(Thread.currentThread().getId());
+        }
+    }
+
+    @Benchmark
+    public Object operation(SharedCube shared, ThreadRandom threadRandom) throws InterruptedException {
+        SplittableRandom random = threadRandom.random;
+        if (random.nextInt(100) < shared.showPercent) {
+            return shared.cube.show();
+        }
+
+        int axis = shared.axisList[random.nextInt(shared.axisList.length)];
+        int layer = shared.layers[random.nextInt(shared.layers.length)];
+        if (random.nextInt(100) < shared.faceTurnPercent) {
+            axis = random.nextInt(3);
+            layer = 0;
+        }
+        // the opposite side rotates the same layer the other way
+        if (random.nextBoolean()) {
+            shared.cube.rotate(axis, layer);
+        } else {
+            shared.cube.rotate(shared.cube.oppositeSide(axis), shared.size - 1 - layer);
+        }
+        return null;
+    }
+}
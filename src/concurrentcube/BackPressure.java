@@ -0,0 +1,11 @@
+package concurrentcube;
+
+// what a cube does with an event when its ring buffer is full (the slowest
+// listener is a whole buffer behind), see CubeOptions.events()
+public enum BackPressure {
+    // the operation waits till the slowest listener frees a slot
+    // (while holding its layer, so listeners slow rotations down)
+    BLOCK,
+    // the event is dropped and counted, see Cube.getDroppedEvents()
+    DROP
+}
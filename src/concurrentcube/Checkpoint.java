@@ -0,0 +1,82 @@
+package concurrentcube;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+// states of a durable cube kept in files checkpoint-<version>.cube
+// in the binary format of ShowFormat, version is the cube's version
+// the state was taken at
+class Checkpoint {
+    private static final String PREFIX = "checkpoint-";
+    private static final String SUFFIX = ".cube";
+
+    private Checkpoint() {
+    }
+
+    private static Path path(Path directory, long version) {
+        return directory.resolve(String.format("%s%020d%s", PREFIX, version, SUFFIX));
+    }
+
+    // writes the snapshot (releasing it) to a new temporary file and forces
+    // it to disk, then makes it the latest checkpoint and deletes the older
+    // ones; callers must not write checkpoints concurrently
+    static void write(Path directory, long version, Snapshot snapshot) throws IOException {
+        Path temporary = Files.createTempFile(directory, PREFIX, ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+                ShowWriter.write(snapshot, ShowFormat.BINARY, channel);
+                channel.force(true);
+            }
+            Files.move(temporary, path(directory, version), StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+
+        for (long old : versions(directory)) {
+            if (old < version) {
+                Files.deleteIfExists(path(directory, old));
+            }
+        }
+    }
+
+    // version of the latest checkpoint, -1 if there is none
+    static long latest(Path directory) throws IOException {
+        long latest = -1;
+        for (long version : versions(directory)) {
+            latest = Math.max(latest, version);
+        }
+        return latest;
+    }
+
+    // streams the rows of the checkpoint of a cube of the given size
+    static void read(Path directory, long version, int size, ShowWriter.Rows rows)
+            throws IOException {
+        try (FileChannel channel = FileChannel.open(path(directory, version), StandardOpenOption.READ)) {
+            int checkpointSize = ShowWriter.readHeader(channel);
+            if (checkpointSize != size) {
+                throw new IllegalArgumentException("checkpoint in " + directory + " is of size "
+                        + checkpointSize + ", not " + size);
+            }
+            ShowWriter.readRows(channel, size, rows);
+        }
+    }
+
+    private static List<Long> versions(Path directory) throws IOException {
+        List<Long> versions = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                versions.add(Long.parseLong(
+                        name.substring(PREFIX.length(), name.length() - SUFFIX.length())));
+            }
+        }
+        return versions;
+    }
+}
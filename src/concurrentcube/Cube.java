@@ -1,73 +1,269 @@
 package concurrentcube;
 
-import java.util.concurrent.Semaphore;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 
 public class Cube {
-    // [side][row][column]
+    // the fewest squares of a line moved by one thread of the rotation pool
+    private static final int PARALLEL_CHUNK = 1024;
+    // the fewest squares moved by one task of replay()
+    private static final int REPLAY_TASK_SQUARES = 1 << 16;
+    // squares of a line moved by one bulk copy
+    private static final int BULK_CHUNK = 4096;
+    // rows and columns of a tile of squares turnSquares() moves together
+    private static final int TURN_TILE = 64;
+    // the most squares show() and others put in one string (arrays
+    // somewhat shorter than Integer.MAX_VALUE are the most a JVM gives)
+    private static final long MAX_TEXT = Integer.MAX_VALUE - 8;
+    // sides laid out by columns (square (row, column) at column * size + row)
+    // for CubeOptions.preferredAxis(), other sides are laid out by rows
+    private static final int[][] COLUMN_SIDES = {{}, {0, 2, 4, 5}, {1, 3}};
+    // lines of other sides moved by rotate(side, layer): line i is
+    // on side RING_SIDES[side][i], it is a column if RING_COLUMNS[side][i]
+    // (a row otherwise), its index is size - 1 - layer if RING_FLIPPED[side][i]
+    // (layer otherwise)
+    private static final int[][] RING_SIDES = {
+            {1, 2, 3, 4}, {0, 4, 5, 2}, {0, 1, 5, 3}, {0, 2, 5, 4}, {3, 5, 1, 0}, {1, 2, 3, 4}};
+    private static final boolean[][] RING_COLUMNS = {
+            {false, false, false, false}, {true, true, true, true}, {false, true, false, true},
+            {true, true, true, true}, {true, false, true, false}, {false, false, false, false}};
+    private static final boolean[][] RING_FLIPPED = {
+            {false, false, false, false}, {false, true, false, false}, {true, true, false, false},
+            {true, true, true, false}, {true, true, false, false}, {true, true, true, true}};
+    // for sides 0, 1, 2: line i of the ring starts at the last square
+    // of its row or column and goes backwards, so that squares of the lines
+    // in their order are moved one to another
+    private static final boolean[][] RING_BACKWARDS = {
+            {false, false, false, false}, {false, true, false, false}, {false, true, true, false}};
+    // rotating the whole cube looking from side 0, 1 or 2 (every layer
+    // of the axis): side s gets the squares of side WHOLE_FROM[axis][s]
+    // turned right WHOLE_TURNS[axis][s] times
+    private static final int[][] WHOLE_FROM = {
+            {0, 2, 3, 4, 1, 5}, {4, 1, 0, 3, 5, 2}, {1, 5, 2, 0, 4, 3}};
+    private static final int[][] WHOLE_TURNS = {
+            {1, 0, 0, 0, 0, 3}, {2, 1, 0, 3, 2, 0}, {1, 1, 1, 1, 3, 1}};
+
+    // buffers of bulk copies, two per thread moving squares
+    private static final ThreadLocal<byte[][]> bulkBuffers =
+            ThreadLocal.withInitial(() -> new byte[2][BULK_CHUNK]);
+    // changes of a side's fingerprint hashes, one per thread rotating
+    private static final ThreadLocal<long[]> fingerprintChanges =
+            ThreadLocal.withInitial(() -> new long[4]);
+
     private int size;
-    private int[][][] squares;
+    // colors of squares, see Storage for the layout of a side
+    private Storage squares;
+    // square (row, column) of side s is kept at index
+    // sideOffset[s] + row * rowStep[s] + column * columnStep[s];
+    // turning a side only changes these numbers (the side's orientation),
+    // squares are never moved (but see layoutAxis)
+    private long[] sideOffset;
+    private long[] rowStep;
+    private long[] columnStep;
+    // axis given by CubeOptions.preferredAxis() (-1 without it), turning
+    // the other sides moves their squares instead, so that the lines
+    // rotations on the axis move stay next to each other
+    private int layoutAxis = -1;
+    // snapshots being read, rotations preserve squares for them
+    // before changing them
+    private volatile Snapshot[] snapshots = new Snapshot[0];
+    private final Object snapshotsLock = new Object();
+    // every rotation gets the next version, it is stamped on the side
+    // (after turning the side) or on the rows and columns of sides
+    // it changes, so that showDelta() finds them
+    private final AtomicLong version = new AtomicLong();
+    private long[] sideVersion;
+    private long[][] rowVersion;
+    private long[][] columnVersion;
     private BiConsumer<Integer, Integer> beforeRotation;
     private BiConsumer<Integer, Integer> afterRotation;
     private Runnable beforeShowing;
     private Runnable afterShowing;
 
-    // informs how many threads are waiting for operations:
-    // in each group: rotate() on axis 0, 1 or 2 and show();
-    // axis_i crosses side i
-    private int[] waitingGroup;
-    // informs how many threads are waiting for operation rotate()
-    // on each layer
-    private int[][] waitingLayer;
-
-    // informs how many threads are executing operations in each group
-    private int[] activeGroup;
-    // informs how many threads are executing rotate() on each layer
-    private int[][] activeLayer;
-
-    // give permits for executing operations
-    private final Semaphore printer = new Semaphore(0, true);
-    private Semaphore[][] layerRotate;
-
-    private final Semaphore mutex = new Semaphore(1, true);
+    // lets operations in, see Scheduler for the rules
+    private Scheduler scheduler;
+    // runs asynchronous operations once they are let in
+    private Executor asyncExecutor;
+    // executes rotations in phases, null unless set in CubeOptions
+    private PhaseScheduler phaseScheduler;
+    // executes rotate() and show() by flat combining, null unless set in CubeOptions
+    private FlatCombiner combiner;
+    // moves squares of one rotation in parallel, null unless set in CubeOptions
+    private ForkJoinPool rotationPool;
+    // null unless collected (see CubeOptions.collectMetrics())
+    private Metrics metrics;
+    // logs rotations of a durable cube, null unless set in CubeOptions
+    private MoveLog moveLog;
+    private Path durableDirectory;
+    // forces the log and takes checkpoints in the background
+    private ScheduledExecutorService durabilityTimer;
+    // the last failure of a background checkpoint, reported by close()
+    private volatile Exception durabilityFailure;
+    // taken by checkpoint(), so that checkpoints are written one at a time
+    private final ReentrantLock checkpointLock = new ReentrantLock();
+    // kept up to date by rotations, null unless set in CubeOptions
+    private Fingerprint fingerprint;
+    // passes events to listeners, null unless set in CubeOptions
+    private EventRing events;
 
     public Cube(int size,
                 BiConsumer<Integer, Integer> beforeRotation,
                 BiConsumer<Integer, Integer> afterRotation,
                 Runnable beforeShowing,
                 Runnable afterShowing) {
+        this(size, beforeRotation, afterRotation, beforeShowing, afterShowing, new CubeOptions());
+    }
+
+    public Cube(int size,
+                BiConsumer<Integer, Integer> beforeRotation,
+                BiConsumer<Integer, Integer> afterRotation,
+                Runnable beforeShowing,
+                Runnable afterShowing,
+                CubeOptions options) {
         this.size = size;
-        this.squares = new int[6][size][size];
+        this.squares = options.createStorage(size);
+        sideOffset = new long[6];
+        rowStep = new long[6];
+        columnStep = new long[6];
         for (int side = 0; side < 6; side++) {
-            for (int row = 0; row < size; row++) {
-                for (int column = 0; column < size; column++) {
-                    squares[side][row][column] = side;
-                }
-            }
+            rowStep[side] = size;
+            columnStep[side] = 1;
         }
+        for (int side : COLUMN_SIDES[options.getPreferredAxis()]) {
+            rowStep[side] = 1;
+            columnStep[side] = size;
+        }
+        if (options.isPreferringAxis()) {
+            layoutAxis = options.getPreferredAxis();
+        }
+        sideVersion = new long[6];
+        rowVersion = new long[6][size];
+        columnVersion = new long[6][size];
 
         this.beforeRotation = beforeRotation;
         this.afterRotation = afterRotation;
         this.beforeShowing = beforeShowing;
         this.afterShowing = afterShowing;
 
-        waitingGroup = new int[4];
-        activeGroup = new int[4];
-        for (int i = 0; i < 4; i++) {
-            waitingGroup[i] = 0;
-            activeGroup[i] = 0;
+        if (options.isCollectingMetrics()) {
+            metrics = new Metrics();
+        }
+        scheduler = new Scheduler(size, metrics, options.getSchedulingPolicy());
+        asyncExecutor = options.getAsyncExecutor();
+        if (options.getRotationPool() != null && size >= options.getParallelThreshold()) {
+            rotationPool = options.getRotationPool();
+        }
+        if (options.getPhasePool() != null) {
+            if (options.isFlatCombining()) {
+                throw new IllegalArgumentException("phases cannot be used with flat combining");
+            }
+            phaseScheduler = new PhaseScheduler(scheduler, size, options.getPhasePool(),
+                    options.getPhaseLength(), this::rotateAdmitted);
+        }
+        if (options.isFlatCombining()) {
+            combiner = new FlatCombiner(scheduler, size, this::rotateAdmitted, this::enterSnapshot,
+                    metrics);
+        }
+        if (options.getDurableDirectory() != null) {
+            try {
+                recover(options);
+            } catch (IOException e) {
+                throw new UncheckedIOException("cannot recover the cube", e);
+            }
         }
-        waitingLayer = new int[3][size];
-        activeLayer = new int[3][size];
-        layerRotate = new Semaphore[3][size];
-        for (int i = 0; i < 3; i++) {
-            for (int j = 0; j < size; j++) {
-                waitingLayer[i][j] = 0;
-                activeLayer[i][j] = 0;
-                layerRotate[i][j] = new Semaphore(0, true);
+        if (options.isTrackingFingerprint()) {
+            fingerprint = new Fingerprint(size);
+            for (int side = 0; side < 6; side++) {
+                for (int row = 0; row < size; row++) {
+                    hashLine(side, row, 0, 0, 1);
+                }
             }
         }
+        // rotations recovered above are not published
+        if (options.getEventCapacity() > 0) {
+            events = new EventRing(options.getEventCapacity(), options.getBackPressure(),
+                    options.getEventListeners());
+            events.start();
+        }
+    }
+
+    // loads the latest checkpoint, replays the rotations logged after it
+    // and starts logging
+    private void recover(CubeOptions options) throws IOException {
+        durableDirectory = options.getDurableDirectory();
+        Files.createDirectories(durableDirectory);
+
+        long checkpointVersion = Checkpoint.latest(durableDirectory);
+        if (checkpointVersion >= 0) {
+            Checkpoint.read(durableDirectory, checkpointVersion, size, (side, row, colors) -> {
+                for (int column = 0; column < size; column++) {
+                    squares.set(side, index(side, row, column), colors[column]);
+                }
+            });
+            version.set(checkpointVersion);
+        }
+        long newest = MoveLog.replay(durableDirectory, checkpointVersion,
+                (logged, side, layer) -> executeRotation(side, layer));
+        version.accumulateAndGet(newest, Math::max);
+
+        moveLog = new MoveLog(durableDirectory, options.getSyncPolicy());
+        boolean syncing = options.getSyncPolicy() == SyncPolicy.INTERVAL;
+        long checkpointInterval = options.getCheckpointIntervalMillis();
+        if (!syncing && checkpointInterval <= 0) {
+            return;
+        }
+        durabilityTimer = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "cube-durability");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (syncing) {
+            long interval = options.getSyncIntervalMillis();
+            durabilityTimer.scheduleWithFixedDelay(() -> {
+                try {
+                    moveLog.force();
+                } catch (IOException e) {
+                    durabilityFailure = e;
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS);
+        }
+        if (checkpointInterval > 0) {
+            durabilityTimer.scheduleWithFixedDelay(() -> {
+                try {
+                    checkpoint();
+                } catch (IOException | RuntimeException e) {
+                    durabilityFailure = e;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, checkpointInterval, checkpointInterval, TimeUnit.MILLISECONDS);
+        }
     }
 
     public int getSize() {
@@ -75,6 +271,10 @@ public class Cube {
     }
 
     public int oppositeSide(int side) {
+        return opposite(side);
+    }
+
+    static int opposite(int side) {
         switch (side) {
             case 0:
                 return 5;
@@ -85,316 +285,1491 @@ public class Cube {
         }
     }
 
-    private int[] copyRow(int side, int row) {
-        int[] copy = new int[size];
-        for (int column = 0; column < size; column++) {
-            copy[column] = squares[side][row][column];
-        }
-        return copy;
+    private long index(int side, int row, int column) {
+        return sideOffset[side] + row * rowStep[side] + column * columnStep[side];
     }
 
-    private int[] copyColumn(int side, int column) {
-        int[] copy = new int[size];
-        for (int row = 0; row < size; row++) {
-            copy[row] = squares[side][row][column];
-        }
-        return copy;
+    // moves squares along four lines of size squares in place:
+    // line 0 takes squares of line 1, line 1 of line 2, line 2 of line 3
+    // and line 3 of line 0; a line is given by its side,
+    // index of its first square and the step to its next square
+    private void cycleLines(int side0, long start0, long step0,
+                            int side1, long start1, long step1,
+                            int side2, long start2, long step2,
+                            int side3, long start3, long step3) {
+        cycleLines(side0, start0, step0, side1, start1, step1,
+                side2, start2, step2, side3, start3, step3, size);
     }
 
-    private int[][] copySide(int side) {
-        int[][] copy = new int[size][size];
-        for (int row = 0; row < size; row++) {
-            copy[row] = copyRow(side, row);
+    // like cycleLines(), but the lines have the given length
+    // (strips of more layers, see cycleSlab())
+    private void cycleLines(int side0, long start0, long step0,
+                            int side1, long start1, long step1,
+                            int side2, long start2, long step2,
+                            int side3, long start3, long step3,
+                            int length) {
+        for (Snapshot snapshot : snapshots) {
+            snapshot.preserve(side0, start0, step0, length);
+            snapshot.preserve(side1, start1, step1, length);
+            snapshot.preserve(side2, start2, step2, length);
+            snapshot.preserve(side3, start3, step3, length);
+        }
+        if (rotationPool == null) {
+            cycleSquares(side0, start0, step0, side1, start1, step1,
+                    side2, start2, step2, side3, start3, step3, 0, length);
+            return;
+        }
+        CycleTask task = new CycleTask(side0, start0, step0, side1, start1, step1,
+                side2, start2, step2, side3, start3, step3, 0, length);
+        if (ForkJoinTask.getPool() == rotationPool) {
+            task.invoke();
+        } else {
+            rotationPool.invoke(task);
         }
-        return copy;
     }
 
-    private void rewriteColumn(int sideFrom, int sideTo, int columnFrom, int columnTo) {
-        for (int row = 0; row < size; row++) {
-            squares[sideTo][row][columnTo] = squares[sideFrom][row][columnFrom];
+    // moves squares from..to - 1 of the lines, see cycleLines()
+    private void cycleSquares(int side0, long start0, long step0,
+                              int side1, long start1, long step1,
+                              int side2, long start2, long step2,
+                              int side3, long start3, long step3,
+                              int from, int to) {
+        if (Math.abs(step0) == 1 && Math.abs(step1) == 1
+                && Math.abs(step2) == 1 && Math.abs(step3) == 1) {
+            cycleBulk(side0, start0, step0, side1, start1, step1,
+                    side2, start2, step2, side3, start3, step3, from, to);
+            return;
+        }
+        start0 += from * step0;
+        start1 += from * step1;
+        start2 += from * step2;
+        start3 += from * step3;
+        for (int i = from; i < to; i++) {
+            int color = squares.get(side0, start0);
+            squares.set(side0, start0, squares.get(side1, start1));
+            squares.set(side1, start1, squares.get(side2, start2));
+            squares.set(side2, start2, squares.get(side3, start3));
+            squares.set(side3, start3, color);
+            start0 += step0;
+            start1 += step1;
+            start2 += step2;
+            start3 += step3;
         }
     }
 
-    private void rewriteColumnConversely(int sideFrom, int sideTo, int columnFrom, int columnTo) {
-        for (int row = 0; row < size; row++) {
-            squares[sideTo][row][columnTo] = squares[sideFrom][size - 1 - row][columnFrom];
+    // moves squares from..to - 1 of lines whose squares are next
+    // to each other (step 1 or -1) chunk by chunk with bulk copies
+    private void cycleBulk(int side0, long start0, long step0,
+                           int side1, long start1, long step1,
+                           int side2, long start2, long step2,
+                           int side3, long start3, long step3,
+                           int from, int to) {
+        byte[][] buffers = bulkBuffers.get();
+        byte[] first = buffers[0];
+        byte[] moved = buffers[1];
+        for (int i = from; i < to; i += BULK_CHUNK) {
+            int length = Math.min(BULK_CHUNK, to - i);
+            readLine(side0, start0, step0, i, length, first);
+            readLine(side1, start1, step1, i, length, moved);
+            writeLine(side0, start0, step0, i, length, moved);
+            readLine(side2, start2, step2, i, length, moved);
+            writeLine(side1, start1, step1, i, length, moved);
+            readLine(side3, start3, step3, i, length, moved);
+            writeLine(side2, start2, step2, i, length, moved);
+            writeLine(side3, start3, step3, i, length, first);
         }
     }
 
-    private void rewriteRow(int sideFrom, int sideTo, int rowFrom, int rowTo) {
-        for (int column = 0; column < size; column++) {
-            squares[sideTo][rowTo][column] = squares[sideFrom][rowFrom][column];
+    // reads squares i..i + length - 1 of the line in the line's order
+    private void readLine(int side, long start, long step, int i, int length, byte[] target) {
+        if (step > 0) {
+            squares.read(side, start + i, target, 0, length);
+        } else {
+            squares.read(side, start - i - length + 1, target, 0, length);
+            reverse(target, length);
         }
     }
 
-    private void rewriteRowToColumn(int sideFrom, int sideTo, int rowFrom, int columnTo) {
-        for (int row = 0; row < size; row++) {
-            squares[sideTo][row][columnTo] = squares[sideFrom][rowFrom][row];
+    // writes squares i..i + length - 1 of the line given in the line's order
+    // (source is reversed if the line goes backwards)
+    private void writeLine(int side, long start, long step, int i, int length, byte[] source) {
+        if (step > 0) {
+            squares.write(side, start + i, source, 0, length);
+        } else {
+            reverse(source, length);
+            squares.write(side, start - i - length + 1, source, 0, length);
         }
     }
 
-    private void rewriteRowToColumnConversely(int sideFrom, int sideTo, int rowFrom, int columnTo) {
-        for (int row = 0; row < size; row++) {
-            squares[sideTo][row][columnTo] = squares[sideFrom][rowFrom][size - 1 - row];
+    private static void reverse(byte[] squares, int length) {
+        for (int i = 0, j = length - 1; i < j; i++, j--) {
+            byte square = squares[i];
+            squares[i] = squares[j];
+            squares[j] = square;
         }
     }
 
-    private void rewriteColumnToRow(int sideFrom, int sideTo, int columnFrom, int rowTo) {
-        for (int column = 0; column < size; column++) {
-            squares[sideTo][rowTo][column] = squares[sideFrom][column][columnFrom];
+    // moves squares of the lines in chunks of at most PARALLEL_CHUNK
+    // squares, splitting them in halves among the rotation pool's threads
+    private class CycleTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int side0, side1, side2, side3;
+        private final long start0, start1, start2, start3;
+        private final long step0, step1, step2, step3;
+        private final int from;
+        private final int to;
+
+        private CycleTask(int side0, long start0, long step0,
+                          int side1, long start1, long step1,
+                          int side2, long start2, long step2,
+                          int side3, long start3, long step3,
+                          int from, int to) {
+            this.side0 = side0;
+            this.start0 = start0;
+            this.step0 = step0;
+            this.side1 = side1;
+            this.start1 = start1;
+            this.step1 = step1;
+            this.side2 = side2;
+            this.start2 = start2;
+            this.step2 = step2;
+            this.side3 = side3;
+            this.start3 = start3;
+            this.step3 = step3;
+            this.from = from;
+            this.to = to;
+        }
+
+        private CycleTask part(int from, int to) {
+            return new CycleTask(side0, start0, step0, side1, start1, step1,
+                    side2, start2, step2, side3, start3, step3, from, to);
         }
-    }
 
-    private void rewriteColumnToRowConversely(int sideFrom, int sideTo, int columnFrom, int rowTo) {
-        for (int column = 0; column < size; column++) {
-            squares[sideTo][rowTo][column] = squares[sideFrom][size - 1 - column][columnFrom];
+        @Override
+        protected void compute() {
+            if (to - from <= PARALLEL_CHUNK) {
+                cycleSquares(side0, start0, step0, side1, start1, step1,
+                        side2, start2, step2, side3, start3, step3, from, to);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(part(from, middle), part(middle, to));
         }
     }
 
     // right rotates only top squares on the side
-    // this operation is only for rotate(side, 0)
+    // this operation is only for rotate(side, 0);
+    // afterwards square (row, column) is the one that was at (size - 1 - column, row)
     private void rightRotateSide(int side) {
-        int[][] copySide =  copySide(side);
-        for (int row = 0; row < size; row++) {
-            for (int column = 0; column < size; column++)
-                squares[side][row][column] = copySide[size - 1 - column][row];
-        }
+        long oldRowStep = rowStep[side];
+        sideOffset[side] += (size - 1) * oldRowStep;
+        rowStep[side] = columnStep[side];
+        columnStep[side] = -oldRowStep;
     }
 
     // left rotates only top squares on the side
-    // this operation is only for rotate(side, size - 1)
+    // this operation is only for rotate(side, size - 1);
+    // afterwards square (row, column) is the one that was at (column, size - 1 - row)
     private void leftRotateSide(int side) {
-        int[][] copySide =  copySide(side);
-        for (int row = 0; row < size; row++) {
-            for (int column = 0; column < size; column++)
-                squares[side][row][column] = copySide[column][size - 1 - row];
-        }
+        long oldRowStep = rowStep[side];
+        sideOffset[side] += (size - 1) * columnStep[side];
+        rowStep[side] = -columnStep[side];
+        columnStep[side] = oldRowStep;
     }
 
     // rotates layer looking from side 0
     // (without squares on side 0 and side 5)
-    private void rotatePerimeterLayer0(int layer) {
-        int[] rowTemp = copyRow(1, layer);
-        for (int side = 1; side < 4; side++) {
-            rewriteRow(side + 1, side, layer, layer);
+    private void rotatePerimeterLayer0(int layer, long version) {
+        cycleLines(1, index(1, layer, 0), columnStep[1],
+                2, index(2, layer, 0), columnStep[2],
+                3, index(3, layer, 0), columnStep[3],
+                4, index(4, layer, 0), columnStep[4]);
+        for (int side = 1; side <= 4; side++) {
+            rowVersion[side][layer] = version;
         }
-        squares[4][layer] = rowTemp;
     }
 
     // rotates layer looking from side 1
     // (without squares on side 1 and side 3)
-    private void rotatePerimeterLayer1(int layer) {
-        int[] columnTemp = copyColumn(0, layer);
-        rewriteColumnConversely(4, 0, size - 1 - layer, layer);
-        rewriteColumnConversely(5, 4, layer, size - 1 - layer);
-        rewriteColumn(2, 5, layer, layer);
-        for (int row = 0; row < size; row++) {
-            squares[2][row][layer] = columnTemp[row];
-        }
+    private void rotatePerimeterLayer1(int layer, long version) {
+        cycleLines(0, index(0, 0, layer), rowStep[0],
+                4, index(4, size - 1, size - 1 - layer), -rowStep[4],
+                5, index(5, 0, layer), rowStep[5],
+                2, index(2, 0, layer), rowStep[2]);
+        columnVersion[0][layer] = version;
+        columnVersion[4][size - 1 - layer] = version;
+        columnVersion[5][layer] = version;
+        columnVersion[2][layer] = version;
     }
 
     // rotates layer looking from side 2
     // (without squares on side 2 and side 4)
-    private void rotatePerimeterLayer2(int layer) {
-        int[] rowTemp = copyRow(0, size - 1 - layer);
-        rewriteColumnToRowConversely(1, 0, size - 1 - layer, size - 1 - layer);
-        rewriteRowToColumn(5, 1, layer, size - 1 - layer);
-        rewriteColumnToRowConversely(3, 5, layer, layer);
-        for (int row = 0; row < size; row++) {
-            squares[3][row][layer] = rowTemp[row];
-        }
+    private void rotatePerimeterLayer2(int layer, long version) {
+        cycleLines(0, index(0, size - 1 - layer, 0), columnStep[0],
+                1, index(1, size - 1, size - 1 - layer), -rowStep[1],
+                5, index(5, layer, size - 1), -columnStep[5],
+                3, index(3, 0, layer), rowStep[3]);
+        rowVersion[0][size - 1 - layer] = version;
+        columnVersion[1][size - 1 - layer] = version;
+        rowVersion[5][layer] = version;
+        columnVersion[3][layer] = version;
     }
 
     // rotates layer looking from side 3
     // (without squares on side 1 and side 3)
-    private void rotatePerimeterLayer3(int layer) {
-        int[] columnTemp = copyColumn(0, size - 1 - layer);
-        rewriteColumn(2, 0, size - 1 - layer, size - 1 - layer);
-        rewriteColumn(5, 2, size - 1 - layer, size - 1 - layer);
-        rewriteColumnConversely(4, 5, layer, size - 1 - layer);
-        for (int row = 0; row < size; row++) {
-            squares[4][row][layer] = columnTemp[size - 1 - row];
-        }
+    private void rotatePerimeterLayer3(int layer, long version) {
+        cycleLines(0, index(0, 0, size - 1 - layer), rowStep[0],
+                2, index(2, 0, size - 1 - layer), rowStep[2],
+                5, index(5, 0, size - 1 - layer), rowStep[5],
+                4, index(4, size - 1, layer), -rowStep[4]);
+        columnVersion[0][size - 1 - layer] = version;
+        columnVersion[2][size - 1 - layer] = version;
+        columnVersion[5][size - 1 - layer] = version;
+        columnVersion[4][layer] = version;
     }
 
     // rotates layer looking from side 4
     // (without squares on side 2 and side 4)
-    private void rotatePerimeterLayer4(int layer) {
-        int[] columnTemp = copyColumn(3, size - 1 - layer);
-        rewriteRowToColumnConversely(5, 3, size - 1 - layer, size - 1 - layer);
-        rewriteColumnToRow(1, 5, layer, size - 1 - layer);
-        rewriteRowToColumnConversely(0, 1, layer, layer);
-        squares[0][layer] = columnTemp;
+    private void rotatePerimeterLayer4(int layer, long version) {
+        cycleLines(3, index(3, 0, size - 1 - layer), rowStep[3],
+                5, index(5, size - 1 - layer, size - 1), -columnStep[5],
+                1, index(1, size - 1, layer), -rowStep[1],
+                0, index(0, layer, 0), columnStep[0]);
+        columnVersion[3][size - 1 - layer] = version;
+        rowVersion[5][size - 1 - layer] = version;
+        columnVersion[1][layer] = version;
+        rowVersion[0][layer] = version;
     }
 
     // rotates layer looking from side 5
     // (without squares on side 0 and side 5)
-    private void rotatePerimeterLayer5(int layer) {
-        int[] rowTemp = copyRow(4, size - 1 - layer);
-        for (int side = 4; side > 1; side--) {
-            rewriteRow(side - 1, side, size - 1 - layer, size - 1 - layer);
+    private void rotatePerimeterLayer5(int layer, long version) {
+        cycleLines(4, index(4, size - 1 - layer, 0), columnStep[4],
+                3, index(3, size - 1 - layer, 0), columnStep[3],
+                2, index(2, size - 1 - layer, 0), columnStep[2],
+                1, index(1, size - 1 - layer, 0), columnStep[1]);
+        for (int side = 1; side <= 4; side++) {
+            rowVersion[side][size - 1 - layer] = version;
         }
-        squares[1][size - 1 - layer] = rowTemp;
     }
 
-    private void rotatePerimeterLayer(int side, int layer) {
+    // xors squares of the line starting at (row, column) of the side
+    // and going by (rowDirection, columnDirection) into the fingerprint
+    private void hashLine(int side, int row, int column, int rowDirection, int columnDirection) {
+        long[] changes = fingerprintChanges.get();
+        Arrays.fill(changes, 0);
+        for (int i = 0; i < size; i++) {
+            fingerprint.addKeys(side, row, column, squares.get(side, index(side, row, column)), changes);
+            row += rowDirection;
+            column += columnDirection;
+        }
+        fingerprint.xor(side, changes);
+    }
+
+    // index of line i of the ring of the layer, see RING_SIDES
+    private int ringIndex(int side, int layer, int i) {
+        return RING_FLIPPED[side][i] ? size - 1 - layer : layer;
+    }
+
+    // index of the first square of line i of the ring of the layer
+    // of the axis (0, 1 or 2), see RING_BACKWARDS
+    private long ringStart(int axis, int layer, int i) {
+        int side = RING_SIDES[axis][i];
+        int index = ringIndex(axis, layer, i);
+        int first = RING_BACKWARDS[axis][i] ? size - 1 : 0;
+        return RING_COLUMNS[axis][i] ? index(side, first, index) : index(side, index, first);
+    }
+
+    // step to the next square of line i of rings of the axis
+    private long ringStep(int axis, int i) {
+        int side = RING_SIDES[axis][i];
+        long step = RING_COLUMNS[axis][i] ? rowStep[side] : columnStep[side];
+        return RING_BACKWARDS[axis][i] ? -step : step;
+    }
+
+    // moves squares of the ring of the layer of the axis like rotating
+    // the layer looking from side axis (from the opposite side if backwards),
+    // the lines have length squares (more layers if the ring's lines
+    // continue in lines of the next ones)
+    private void cycleRing(int axis, int layer, boolean backwards, int length) {
+        int[] sides = RING_SIDES[axis];
+        if (!backwards) {
+            cycleLines(sides[0], ringStart(axis, layer, 0), ringStep(axis, 0),
+                    sides[1], ringStart(axis, layer, 1), ringStep(axis, 1),
+                    sides[2], ringStart(axis, layer, 2), ringStep(axis, 2),
+                    sides[3], ringStart(axis, layer, 3), ringStep(axis, 3), length);
+        } else {
+            cycleLines(sides[3], ringStart(axis, layer, 3), ringStep(axis, 3),
+                    sides[2], ringStart(axis, layer, 2), ringStep(axis, 2),
+                    sides[1], ringStart(axis, layer, 1), ringStep(axis, 1),
+                    sides[0], ringStart(axis, layer, 0), ringStep(axis, 0), length);
+        }
+    }
+
+    // moves squares of rings of layers fromLayer..toLayer of the axis;
+    // if on every side the line of the next layer starts where the line
+    // of the layer ends (going on in its direction, or every side the other
+    // way), the strips of all layers are moved at once as long lines
+    private void cycleSlab(int axis, int fromLayer, int toLayer, boolean backwards) {
+        int layers = toLayer - fromLayer + 1;
+        boolean ascending = true;
+        boolean descending = true;
+        if (layers > 1) {
+            for (int i = 0; i < 4; i++) {
+                long delta = ringStart(axis, fromLayer + 1, i) - ringStart(axis, fromLayer, i);
+                long lineLength = size * ringStep(axis, i);
+                ascending &= delta == lineLength;
+                descending &= delta == -lineLength;
+            }
+        }
+        if (ascending || descending) {
+            cycleRing(axis, ascending ? fromLayer : toLayer, backwards, layers * size);
+            return;
+        }
+        for (int layer = fromLayer; layer <= toLayer; layer++) {
+            cycleRing(axis, layer, backwards, size);
+        }
+    }
+
+    // rotates the whole cube looking from side axis (0, 1 or 2) only
+    // by relabeling sides and changing their orientation, no square moves;
+    // must not be used while snapshots are read or fingerprint is kept
+    // (both follow squares of each side)
+    private void relabel(int axis) {
+        int[] from = WHOLE_FROM[axis];
+        long[] offsets = sideOffset.clone();
+        long[] rows = rowStep.clone();
+        long[] columns = columnStep.clone();
+        for (int side = 0; side < 6; side++) {
+            sideOffset[side] = offsets[from[side]];
+            rowStep[side] = rows[from[side]];
+            columnStep[side] = columns[from[side]];
+            for (int turn = 0; turn < WHOLE_TURNS[axis][side]; turn++) {
+                rightRotateSide(side);
+            }
+        }
+        squares.permute(from);
+    }
+
+    // xors the lines moved by rotatePerimeterLayer() into the fingerprint
+    // (before the rotation it takes them out, after it puts them back)
+    private void hashPerimeterLayer(int side, int layer) {
+        for (int i = 0; i < 4; i++) {
+            int index = ringIndex(side, layer, i);
+            if (RING_COLUMNS[side][i]) {
+                hashLine(RING_SIDES[side][i], 0, index, 1, 0);
+            } else {
+                hashLine(RING_SIDES[side][i], index, 0, 0, 1);
+            }
+        }
+    }
+
+    private void rotatePerimeterLayer(int side, int layer, long version) {
+        if (fingerprint != null) {
+            hashPerimeterLayer(side, layer);
+        }
         switch (side) {
             case 0:
-                rotatePerimeterLayer0(layer);
+                rotatePerimeterLayer0(layer, version);
                 break;
             case 1:
-                rotatePerimeterLayer1(layer);
+                rotatePerimeterLayer1(layer, version);
                 break;
             case 2:
-                rotatePerimeterLayer2(layer);
+                rotatePerimeterLayer2(layer, version);
                 break;
             case 3:
-                rotatePerimeterLayer3(layer);
+                rotatePerimeterLayer3(layer, version);
                 break;
             case 4:
-                rotatePerimeterLayer4(layer);
+                rotatePerimeterLayer4(layer, version);
                 break;
             case 5:
-                rotatePerimeterLayer5(layer);
+                rotatePerimeterLayer5(layer, version);
+        }
+        if (fingerprint != null) {
+            hashPerimeterLayer(side, layer);
         }
     }
 
-    private void executeRotation(int side, int layer)  {
+    // returns the version the rotation gave the cube
+    private long executeRotation(int side, int layer)  {
+        long rotationVersion = version.incrementAndGet();
         if (layer == 0) {
-            rightRotateSide(side);
+            turnFace(side, true, rotationVersion);
         }
         else if (layer == size - 1) {
-            leftRotateSide(oppositeSide(side));
+            turnFace(oppositeSide(side), false, rotationVersion);
         }
 
-        rotatePerimeterLayer(side, layer);
+        rotatePerimeterLayer(side, layer, rotationVersion);
+
+        if (moveLog != null) {
+            try {
+                moveLog.commit(moveLog.append(rotationVersion, side, layer));
+            } catch (IOException e) {
+                throw new UncheckedIOException("cannot log the rotation", e);
+            }
+        }
+        return rotationVersion;
     }
 
-    private void releaseGroup(int group) {
-        if (group < 3) {
-            int i = 0;
-            while (i < size && waitingLayer[group][i] == 0)
-                i++;
-            layerRotate[group][i].release();
+    // rotates layers fromLayer..toLayer looking from the side like
+    // executeRotation() of each of them in order, which give the cube
+    // the versions returned, + 1, ...; turns faces at most once
+    // and moves strips of all layers together (see cycleSlab()),
+    // all layers of the axis only relabel sides when nothing follows squares
+    // (and relabeling keeps the layout, see layoutAxis)
+    private long executeRange(int side, int fromLayer, int toLayer) {
+        int axis = axis(side);
+        boolean backwards = side != axis;
+        int layers = toLayer - fromLayer + 1;
+        int lowest = Math.min(axisLayer(side, fromLayer), axisLayer(side, toLayer));
+        int highest = lowest + layers - 1;
+        long lastVersion = version.addAndGet(layers);
+        long firstVersion = lastVersion - layers + 1;
+
+        if (layers == size && snapshots.length == 0 && fingerprint == null
+                && (layoutAxis < 0 || axis == layoutAxis)) {
+            for (int turn = 0; turn < (backwards ? 3 : 1); turn++) {
+                relabel(axis);
+            }
+            Arrays.fill(sideVersion, lastVersion);
+        } else {
+            if (fingerprint != null) {
+                for (int layer = lowest; layer <= highest; layer++) {
+                    hashPerimeterLayer(axis, layer);
+                }
+            }
+            if (lowest == 0) {
+                turnFace(axis, !backwards, lastVersion);
+            }
+            if (highest == size - 1) {
+                turnFace(oppositeSide(axis), backwards, lastVersion);
+            }
+            cycleSlab(axis, lowest, highest, backwards);
+            if (fingerprint != null) {
+                for (int layer = lowest; layer <= highest; layer++) {
+                    hashPerimeterLayer(axis, layer);
+                }
+            }
+            for (int layer = lowest; layer <= highest; layer++) {
+                for (int i = 0; i < 4; i++) {
+                    long[][] lineVersion = RING_COLUMNS[axis][i] ? columnVersion : rowVersion;
+                    lineVersion[RING_SIDES[axis][i]][ringIndex(axis, layer, i)] = lastVersion;
+                }
+            }
         }
-        else {
-            printer.release();
+
+        if (moveLog != null) {
+            try {
+                long position = 0;
+                for (int layer = fromLayer; layer <= toLayer; layer++) {
+                    position = moveLog.append(firstVersion + layer - fromLayer, side, layer);
+                }
+                moveLog.commit(position);
+            } catch (IOException e) {
+                throw new UncheckedIOException("cannot log the rotation", e);
+            }
         }
+        return firstVersion;
+    }
+
+    // turns the side right (left unless right) like rotations of its face do
+    private void turnFace(int side, boolean right, long rotationVersion) {
+        if (layoutAxis >= 0 && axis(side) != layoutAxis) {
+            turnSquares(side, right);
+        } else if (right) {
+            rightRotateSide(side);
+        } else {
+            leftRotateSide(side);
+        }
+        sideVersion[side] = rotationVersion;
+        if (fingerprint != null) {
+            if (right) {
+                fingerprint.rightTurn(side);
+            } else {
+                fingerprint.leftTurn(side);
+            }
+        }
+    }
+
+    // turns the side right (left unless right) by moving its squares,
+    // its orientation stays as it was; squares move in fours (one from
+    // each quarter of the side), tile by tile to stay in the cache
+    private void turnSquares(int side, boolean right) {
+        long cells = (long) size * size;
+        for (Snapshot snapshot : snapshots) {
+            for (long start = 0; start < cells; start += Integer.MAX_VALUE) {
+                snapshot.preserve(side, start, 1, (int) Math.min(Integer.MAX_VALUE, cells - start));
+            }
+        }
+        int rows = size / 2;
+        int columns = (size + 1) / 2;
+        for (int tileRow = 0; tileRow < rows; tileRow += TURN_TILE) {
+            for (int tileColumn = 0; tileColumn < columns; tileColumn += TURN_TILE) {
+                for (int row = tileRow; row < Math.min(rows, tileRow + TURN_TILE); row++) {
+                    for (int column = tileColumn; column < Math.min(columns, tileColumn + TURN_TILE); column++) {
+                        // (row, column) takes the square of the next one on a right turn
+                        long index0 = index(side, row, column);
+                        long index1 = index(side, size - 1 - column, row);
+                        long index2 = index(side, size - 1 - row, size - 1 - column);
+                        long index3 = index(side, column, size - 1 - row);
+                        if (!right) {
+                            long swapped = index1;
+                            index1 = index3;
+                            index3 = swapped;
+                        }
+                        int color = squares.get(side, index0);
+                        squares.set(side, index0, squares.get(side, index1));
+                        squares.set(side, index1, squares.get(side, index2));
+                        squares.set(side, index2, squares.get(side, index3));
+                        squares.set(side, index3, color);
+                    }
+                }
+            }
+        }
+    }
+
+    // axis crossing the side (rotations of opposite sides share the axis)
+    private int axis(int side) {
+        return side < 3 ? side : oppositeSide(side);
+    }
+
+    // layer of the side numbered looking from side axis(side)
+    private int axisLayer(int side, int layer) {
+        return side < 3 ? layer : size - 1 - layer;
     }
 
     // waits till rotating is possible, then rotates the cube
     public void rotate(int side, int layer) throws InterruptedException {
-        int uniqueSide = side < 3 ? side : oppositeSide(side);
-        int uniqueLayer = side < 3 ? layer : size - 1 - layer;
-
-        mutex.acquireUninterruptibly();
-        if (!Thread.currentThread().isInterrupted()) {
-            if (waitingGroup[(uniqueSide + 1) % 4] > 0 || waitingGroup[(uniqueSide + 2) % 4] > 0 ||
-                    waitingGroup[(uniqueSide + 3) % 4] > 0 || activeGroup[(uniqueSide + 1) % 4] > 0 ||
-                    activeGroup[(uniqueSide + 2) % 4] > 0 || activeGroup[(uniqueSide + 3) % 4] > 0 ||
-                    activeLayer[uniqueSide][uniqueLayer] > 0) {
-                waitingGroup[uniqueSide]++;
-                waitingLayer[uniqueSide][uniqueLayer]++;
-                mutex.release();
-                try {
-                    layerRotate[uniqueSide][uniqueLayer].acquire();
-                } finally {
-                    waitingGroup[uniqueSide]--;
-                    waitingLayer[uniqueSide][uniqueLayer]--;
+        int axis = axis(side);
+        int axisLayer = axisLayer(side, layer);
+
+        if (phaseScheduler != null) {
+            phaseScheduler.await(phaseScheduler.submit(side, layer, axis, axisLayer));
+            return;
+        }
+        if (combiner != null) {
+            combiner.rotate(side, layer, axis);
+            return;
+        }
+
+        scheduler.enter(axis, axisLayer, axisLayer);
+        try {
+            rotateAdmitted(side, layer);
+        } finally {
+            scheduler.exit(axis, axisLayer, axisLayer);
+        }
+    }
+
+    // like rotate(), but gives up if the rotation cannot start within
+    // the timeout and returns false (nothing is rotated then)
+    public boolean tryRotate(int side, int layer, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        int axis = axis(side);
+        int axisLayer = axisLayer(side, layer);
+
+        // without a timeout the rotation does not wait for a phase,
+        // it gets in only if the layer is free at once
+        if (phaseScheduler != null && timeout > 0) {
+            return phaseScheduler.await(phaseScheduler.submit(side, layer, axis, axisLayer),
+                    unit.toNanos(timeout));
+        }
+
+        if (!scheduler.tryEnter(axis, axisLayer, axisLayer, unit.toNanos(timeout))) {
+            return false;
+        }
+        try {
+            rotateAdmitted(side, layer);
+        } finally {
+            scheduler.exit(axis, axisLayer, axisLayer);
+        }
+        return true;
+    }
+
+    // rotates only if the rotation may start at once, returns if it did
+    public boolean tryRotate(int side, int layer) throws InterruptedException {
+        return tryRotate(side, layer, 0, TimeUnit.NANOSECONDS);
+    }
+
+    // rotates the cube once the rotation has been let in
+    private void rotateAdmitted(int side, int layer) {
+        beforeRotation.accept(side, layer);
+        long rotationVersion;
+        if (metrics == null) {
+            rotationVersion = executeRotation(side, layer);
+        } else {
+            long start = System.nanoTime();
+            rotationVersion = executeRotation(side, layer);
+            metrics.rotated(System.nanoTime() - start);
+        }
+        afterRotation.accept(side, layer);
+        if (events != null) {
+            events.publishRotation(side, layer, rotationVersion);
+        }
+    }
+
+    // queues the rotation without blocking the calling thread;
+    // the future completes after the rotation is done (it is executed
+    // on the async executor from CubeOptions once it may run);
+    // rotation of a cancelled future is skipped
+    public CompletableFuture<Void> rotateAsync(int side, int layer) {
+        int axis = axis(side);
+        int axisLayer = axisLayer(side, layer);
+        if (phaseScheduler != null) {
+            return phaseScheduler.submit(side, layer, axis, axisLayer).getDone();
+        }
+        return executeLater(axis, axisLayer, axisLayer, () -> {
+            rotateAdmitted(side, layer);
+            return null;
+        });
+    }
+
+    private <T> CompletableFuture<T> executeLater(int group, int fromLayer, int toLayer,
+                                                  Supplier<T> operation) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        Runnable task = () -> {
+            T result = null;
+            Throwable failure = null;
+            try {
+                if (!future.isDone()) {
+                    result = operation.get();
                 }
+            } catch (Throwable t) {
+                failure = t;
+            } finally {
+                scheduler.exit(group, fromLayer, toLayer);
+            }
+            if (failure == null) {
+                future.complete(result);
+            } else {
+                future.completeExceptionally(failure);
+            }
+        };
+
+        scheduler.enterLater(group, fromLayer, toLayer, () -> {
+            try {
+                asyncExecutor.execute(task);
+            } catch (RejectedExecutionException e) {
+                scheduler.exit(group, fromLayer, toLayer);
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    // waits till layers fromLayer..toLayer of the side may be rotated
+    // (all of them are let in at once), then rotates each of them like
+    // rotate(side, layer) does, faster than one by one: beforeRotation
+    // is called for every layer, then all of them are rotated, then
+    // afterRotation is called for every layer; rotating all layers turns
+    // the whole cube, which only relabels its sides
+    public void rotateRange(int side, int fromLayer, int toLayer) throws InterruptedException {
+        if (fromLayer < 0 || fromLayer > toLayer || toLayer >= size) {
+            throw new IllegalArgumentException("layers " + fromLayer + ".." + toLayer
+                    + " are not in a cube of size " + size);
+        }
+        int axis = axis(side);
+        int lowest = Math.min(axisLayer(side, fromLayer), axisLayer(side, toLayer));
+        int highest = Math.max(axisLayer(side, fromLayer), axisLayer(side, toLayer));
+
+        scheduler.enter(axis, lowest, highest);
+        try {
+            for (int layer = fromLayer; layer <= toLayer; layer++) {
+                beforeRotation.accept(side, layer);
+            }
+            long firstVersion;
+            if (metrics == null) {
+                firstVersion = executeRange(side, fromLayer, toLayer);
+            } else {
+                long start = System.nanoTime();
+                firstVersion = executeRange(side, fromLayer, toLayer);
+                metrics.rotated(System.nanoTime() - start, toLayer - fromLayer + 1);
+            }
+            for (int layer = fromLayer; layer <= toLayer; layer++) {
+                afterRotation.accept(side, layer);
+                if (events != null) {
+                    events.publishRotation(side, layer, firstVersion + layer - fromLayer);
+                }
+            }
+        } finally {
+            scheduler.exit(axis, lowest, highest);
+        }
+    }
+
+    // waits till all the rotations are possible, then executes them one
+    // after another with no show() in between;
+    // rotations on one axis hold only the range of layers they touch,
+    // rotations on more axes hold the whole cube
+    public void rotateAll(int[] sides, int[] layers) throws InterruptedException {
+        if (sides.length != layers.length) {
+            throw new IllegalArgumentException("got " + sides.length + " sides and "
+                    + layers.length + " layers");
+        }
+        if (sides.length == 0) {
+            return;
+        }
+
+        int axis = axis(sides[0]);
+        int fromLayer = size - 1;
+        int toLayer = 0;
+        for (int i = 0; i < sides.length; i++) {
+            int axisLayer = axisLayer(sides[i], layers[i]);
+            if (axis(sides[i]) != axis) {
+                fromLayer = 0;
+                toLayer = size - 1;
+                break;
+            }
+            fromLayer = Math.min(fromLayer, axisLayer);
+            toLayer = Math.max(toLayer, axisLayer);
+        }
+
+        scheduler.enter(axis, fromLayer, toLayer);
+        try {
+            for (int i = 0; i < sides.length; i++) {
+                rotateAdmitted(sides[i], layers[i]);
+            }
+        } finally {
+            scheduler.exit(axis, fromLayer, toLayer);
+        }
+    }
+
+    // executes the sequence like rotateAll(int[], int[])
+    public void rotateAll(MoveSequence moves) throws InterruptedException {
+        rotateAll(moves.getSides(), moves.getLayers());
+    }
+
+    // applies rotations of the move file (a segment of the move log or a file
+    // written by MoveSequence.write()) in order, leaving the cube in the
+    // state rotate() would; holds the whole cube till it is done and does
+    // not call beforeRotation and afterRotation (nor publish events);
+    // every run of rotations on one axis is folded into net quarter turns
+    // of its layers, which are turned in parallel on the pool (if not null);
+    // returns the number of rotations read
+    public long replay(Path moveFile, ForkJoinPool pool) throws InterruptedException, IOException {
+        // net quarter turns of each layer of the run's axis looking from side axis
+        int[] turns = new int[size];
+        // layers turned in the run, in order of their first rotation
+        int[] touched = new int[size];
+        var run = new Object() {
+            int axis = -1;
+            int touchedCount = 0;
+            long rotations = 0;
+        };
+
+        scheduler.enter(0, 0, size - 1);
+        try {
+            MoveLog.read(moveFile, (logged, side, layer) -> {
+                if (layer < 0 || layer >= size) {
+                    throw new IllegalArgumentException("move file rotates layer " + layer
+                            + " of a cube of size " + size);
+                }
+                int axis = axis(side);
+                if (axis != run.axis) {
+                    turnLayers(run.axis, turns, touched, run.touchedCount, pool);
+                    run.axis = axis;
+                    run.touchedCount = 0;
+                }
+                int axisLayer = axisLayer(side, layer);
+                if (turns[axisLayer] == 0) {
+                    touched[run.touchedCount++] = axisLayer;
+                }
+                // a layer turned back to 0 stays touched, 4 marks it
+                int sum = (turns[axisLayer] % 4 + (side < 3 ? 1 : 3)) % 4;
+                turns[axisLayer] = sum == 0 ? 4 : sum;
+                run.rotations++;
+            });
+            turnLayers(run.axis, turns, touched, run.touchedCount, pool);
+        } finally {
+            scheduler.exit(0, 0, size - 1);
+        }
+        return run.rotations;
+    }
+
+    // turns the touched layers of the axis by their net quarter turns
+    // and clears them
+    private void turnLayers(int axis, int[] turns, int[] touched, int touchedCount,
+                            ForkJoinPool pool) {
+        int layersPerTask = Math.max(1, REPLAY_TASK_SQUARES / (4 * size));
+        if (pool == null || touchedCount <= layersPerTask) {
+            turnLayers(axis, turns, touched, 0, touchedCount);
+        } else {
+            List<ForkJoinTask<?>> tasks = new ArrayList<>();
+            for (int from = 0; from < touchedCount; from += layersPerTask) {
+                int start = from;
+                int end = Math.min(touchedCount, from + layersPerTask);
+                tasks.add(pool.submit(() -> turnLayers(axis, turns, touched, start, end)));
+            }
+            for (ForkJoinTask<?> task : tasks) {
+                task.join();
+            }
+        }
+        for (int i = 0; i < touchedCount; i++) {
+            turns[touched[i]] = 0;
+        }
+    }
+
+    private void turnLayers(int axis, int[] turns, int[] touched, int from, int to) {
+        for (int i = from; i < to; i++) {
+            int layer = touched[i];
+            switch (turns[layer]) {
+                case 1:
+                    executeRotation(axis, layer);
+                    break;
+                case 2:
+                    executeRotation(axis, layer);
+                    executeRotation(axis, layer);
+                    break;
+                case 3:
+                    executeRotation(opposite(axis), size - 1 - layer);
             }
+        }
+    }
+
+    // takes the state of the cube, must be called while no rotation runs
+    private Snapshot takeSnapshot() {
+        Snapshot snapshot = new Snapshot(squares, size, sideOffset, rowStep, columnStep);
+        synchronized (snapshotsLock) {
+            Snapshot[] active = Arrays.copyOf(snapshots, snapshots.length + 1);
+            active[active.length - 1] = snapshot;
+            snapshots = active;
+        }
+        return snapshot;
+    }
 
-            activeLayer[uniqueSide][uniqueLayer]++;
-            activeGroup[uniqueSide]++;
+    private void dropSnapshot(Snapshot snapshot) {
+        synchronized (snapshotsLock) {
+            Snapshot[] active = new Snapshot[snapshots.length - 1];
             int i = 0;
-            while (i < size && (activeLayer[uniqueSide][i] > 0 || waitingLayer[uniqueSide][i] == 0))
-                i++;
-            if (i != size)
-                layerRotate[uniqueSide][i].release();
-            else
-                mutex.release();
-
-            beforeRotation.accept(side, layer);
-            executeRotation(side, layer);
-            afterRotation.accept(side, layer);
-
-            mutex.acquireUninterruptibly();
-            activeGroup[uniqueSide]--;
-            activeLayer[uniqueSide][uniqueLayer]--;
-            if (!Thread.currentThread().isInterrupted()) {
-                if (activeGroup[uniqueSide] == 0) {
-                    if (waitingGroup[(uniqueSide + 1) % 4] > 0)
-                        releaseGroup((uniqueSide + 1) % 4);
-                    else if (waitingGroup[(uniqueSide + 2) % 4] > 0)
-                        releaseGroup((uniqueSide + 2) % 4);
-                    else if (waitingGroup[(uniqueSide + 3) % 4] > 0)
-                        releaseGroup((uniqueSide + 3) % 4);
-                    else if (waitingGroup[uniqueSide] > 0)
-                        releaseGroup(uniqueSide);
-                    else
-                        mutex.release();
-                } else {
-                    mutex.release();
+            for (Snapshot other : snapshots) {
+                if (other != snapshot) {
+                    active[i++] = other;
                 }
             }
+            snapshots = active;
         }
     }
 
-    private String executeShowing() {
-        StringBuffer sb = new StringBuffer();
-        for (int side = 0; side < 6; side++) {
-            for (int row = 0; row < size; row++) {
-                for (int column = 0; column < size; column++) {
-                    sb.append(squares[side][row][column]);
+    // lets show() in for a moment to take the state of the cube
+    private Snapshot enterSnapshot() {
+        beforeShowing.run();
+        Snapshot snapshot = takeSnapshot();
+        try {
+            afterShowing.run();
+        } catch (RuntimeException | Error e) {
+            dropSnapshot(snapshot);
+            throw e;
+        }
+        if (metrics != null) {
+            metrics.showed();
+        }
+        if (events != null) {
+            events.publishShow(version.get());
+        }
+        return snapshot;
+    }
+
+    // length of a string of that many squares, too many of them
+    // do not fit into one (but can be written by show(channel, format))
+    private static int textLength(long squares) {
+        if (squares > MAX_TEXT) {
+            throw new UnsupportedOperationException(squares + " squares do not fit into a string,"
+                    + " show(WritableByteChannel, ShowFormat) writes them without one");
+        }
+        return (int) squares;
+    }
+
+    // shows the snapshot (rotations may go on meanwhile)
+    private String executeShowing(Snapshot snapshot) {
+        try {
+            byte[] text = new byte[textLength(6L * size * size)];
+            byte[] row = new byte[size];
+            int position = 0;
+            for (int side = 0; side < 6; side++) {
+                for (int rowIndex = 0; rowIndex < size; rowIndex++) {
+                    snapshot.readRow(side, rowIndex, row);
+                    for (int column = 0; column < size; column++) {
+                        text[position++] = (byte) ('0' + row[column]);
+                    }
                 }
+                snapshot.release(side);
             }
+            return new String(text, StandardCharsets.US_ASCII);
+        } finally {
+            dropSnapshot(snapshot);
         }
-        return sb.toString();
     }
 
-    // waits till showing is possible, then shows the cube
-    public String show() throws InterruptedException {
-        mutex.acquireUninterruptibly();
-        if (!Thread.currentThread().isInterrupted()) {
-            if (activeGroup[0] > 0 || activeGroup[1] > 0 || activeGroup[2] > 0 || activeGroup[3] > 0) {
-                waitingGroup[3]++;
-                mutex.release();
+    // queues showing like rotateAsync(); the state is taken once showing
+    // is let in and turned into the string by another task of the async
+    // executor, cancelling the future before that drops the state
+    public CompletableFuture<String> showAsync() {
+        textLength(6L * size * size);
+        CompletableFuture<Snapshot> taken = executeLater(Scheduler.SHOW, 0, 0, this::enterSnapshot);
+        CompletableFuture<String> shown = new CompletableFuture<>();
+        shown.whenComplete((result, failure) -> {
+            if (shown.isCancelled()) {
+                taken.cancel(false);
+            }
+        });
+        taken.whenComplete((snapshot, failure) -> {
+            if (failure != null) {
+                shown.completeExceptionally(failure);
+            } else if (snapshot != null) {
+                showLater(snapshot, shown);
+            }
+        });
+        return shown;
+    }
+
+    // completes the future with the shown snapshot unless it is done
+    // already, the snapshot is dropped either way
+    private void showLater(Snapshot snapshot, CompletableFuture<String> shown) {
+        if (shown.isDone()) {
+            dropSnapshot(snapshot);
+            return;
+        }
+        try {
+            asyncExecutor.execute(() -> {
+                if (shown.isDone()) {
+                    dropSnapshot(snapshot);
+                    return;
+                }
                 try {
-                    printer.acquire();
-                } finally {
-                    waitingGroup[3]--;
+                    shown.complete(executeShowing(snapshot));
+                } catch (Throwable t) {
+                    shown.completeExceptionally(t);
                 }
+            });
+        } catch (RejectedExecutionException e) {
+            dropSnapshot(snapshot);
+            shown.completeExceptionally(e);
+        }
+    }
+
+    // whether the squares of each line moved by rotations on the axis
+    // are next to each other (for tests)
+    boolean isLaidOutFor(int axis) {
+        for (int i = 0; i < 4; i++) {
+            int side = RING_SIDES[axis][i];
+            long step = RING_COLUMNS[axis][i] ? rowStep[side] : columnStep[side];
+            if (Math.abs(step) != 1) {
+                return false;
             }
-            activeGroup[3]++;
-            mutex.release();
+        }
+        return true;
+    }
+
+    // how many snapshots rotations preserve squares for (for tests)
+    int activeSnapshots() {
+        return snapshots.length;
+    }
+
+    // statistics of phases, or null unless the cube executes rotations
+    // in phases (see CubeOptions.phases())
+    public PhaseStatistics getPhaseStatistics() {
+        return phaseScheduler == null ? null : phaseScheduler.getStatistics();
+    }
 
+    // how many events were dropped because the ring buffer was full
+    // (see BackPressure.DROP)
+    public long getDroppedEvents() {
+        return events == null ? 0 : events.dropped();
+    }
+
+    // metrics of the cube, or null unless they are collected
+    // (see CubeOptions.collectMetrics())
+    public CubeMetrics getMetrics() {
+        return metrics == null ? null : metrics.snapshot(scheduler.waitingCounts());
+    }
+
+    // registers the cube's metrics in the platform MBean server
+    // under the name, see CubeMetricsMXBean
+    public void registerMetrics(ObjectName name) throws JMException {
+        if (metrics == null) {
+            throw new IllegalStateException("the cube does not collect metrics");
+        }
+        ManagementFactory.getPlatformMBeanServer()
+                .registerMBean(new CubeMetricsBean(this::getMetrics), name);
+    }
+
+    // takes the state of the cube without calling beforeShowing and afterShowing
+    private Snapshot enterState() throws InterruptedException {
+        scheduler.enter(Scheduler.SHOW, 0, 0);
+        try {
+            return takeSnapshot();
+        } finally {
+            scheduler.exit(Scheduler.SHOW, 0, 0);
+        }
+    }
+
+    // 64-bit hash of the colors of all squares, equal for cubes of one size
+    // in the same state (see Fingerprint); waits like show(), then answers
+    // at once if the cube tracks it, reads the whole cube otherwise
+    public long fingerprint() throws InterruptedException {
+        if (fingerprint != null) {
+            scheduler.enter(Scheduler.SHOW, 0, 0);
+            try {
+                return fingerprint.value();
+            } finally {
+                scheduler.exit(Scheduler.SHOW, 0, 0);
+            }
+        }
+
+        Snapshot snapshot = enterState();
+        try {
+            long value = 0;
+            byte[] row = new byte[size];
+            for (int side = 0; side < 6; side++) {
+                for (int rowIndex = 0; rowIndex < size; rowIndex++) {
+                    snapshot.readRow(side, rowIndex, row);
+                    for (int column = 0; column < size; column++) {
+                        value ^= Fingerprint.key(size, side, rowIndex, column, row[column]);
+                    }
+                }
+                snapshot.release(side);
+            }
+            return value;
+        } finally {
+            dropSnapshot(snapshot);
+        }
+    }
+
+    // informs if the other cube is in the same state; when both cubes
+    // track their fingerprints it answers at once by comparing them
+    // (different states give equal ones with probability about 2^-64),
+    // otherwise the cubes are compared square by square
+    public boolean contentEquals(Cube other) throws InterruptedException {
+        return contentEquals(other, false);
+    }
+
+    // like contentEquals(other), but with verify equal fingerprints
+    // are checked by comparing the cubes square by square
+    public boolean contentEquals(Cube other, boolean verify) throws InterruptedException {
+        if (other == this) {
+            return true;
+        }
+        if (other.size != size) {
+            return false;
+        }
+        if (fingerprint != null && other.fingerprint != null) {
+            if (fingerprint() != other.fingerprint()) {
+                return false;
+            }
+            if (!verify) {
+                return true;
+            }
+        }
+
+        Snapshot mine = enterState();
+        try {
+            Snapshot theirs = other.enterState();
+            try {
+                byte[] myRow = new byte[size];
+                byte[] theirRow = new byte[size];
+                for (int side = 0; side < 6; side++) {
+                    for (int row = 0; row < size; row++) {
+                        mine.readRow(side, row, myRow);
+                        theirs.readRow(side, row, theirRow);
+                        if (!Arrays.equals(myRow, theirRow)) {
+                            return false;
+                        }
+                    }
+                }
+                return true;
+            } finally {
+                other.dropSnapshot(theirs);
+            }
+        } finally {
+            dropSnapshot(mine);
+        }
+    }
+
+    // informs if every side is of one color; a cube tracking its fingerprint
+    // answers at once from the hashes of its sides (wrong with probability
+    // about 2^-64), otherwise the whole cube is read
+    public boolean isSolved() throws InterruptedException {
+        return isSolved(false);
+    }
+
+    // like isSolved(), but with verify a cube whose hashes say it is solved
+    // is read to check it
+    public boolean isSolved(boolean verify) throws InterruptedException {
+        if (fingerprint != null) {
+            if (!looksSolved()) {
+                return false;
+            }
+            if (!verify) {
+                return true;
+            }
+        }
+
+        Snapshot snapshot = enterState();
+        try {
+            byte[] row = new byte[size];
+            for (int side = 0; side < 6; side++) {
+                snapshot.readRow(side, 0, row);
+                int color = row[0];
+                for (int rowIndex = 0; rowIndex < size; rowIndex++) {
+                    snapshot.readRow(side, rowIndex, row);
+                    for (int column = 0; column < size; column++) {
+                        if (row[column] != color) {
+                            return false;
+                        }
+                    }
+                }
+                snapshot.release(side);
+            }
+            return true;
+        } finally {
+            dropSnapshot(snapshot);
+        }
+    }
+
+    // informs if the hash of every side is the one of a side of one color
+    private boolean looksSolved() throws InterruptedException {
+        scheduler.enter(Scheduler.SHOW, 0, 0);
+        try {
+            for (int side = 0; side < 6; side++) {
+                boolean plain = false;
+                for (int color = 0; color < 6 && !plain; color++) {
+                    plain = fingerprint.side(side) == fingerprint.solvedSide(side, color);
+                }
+                if (!plain) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            scheduler.exit(Scheduler.SHOW, 0, 0);
+        }
+    }
+
+    // writes the state of a durable cube to a new checkpoint, so that
+    // recovery replays only rotations after it; like show(), rotations
+    // are held off only while the state is taken
+    public void checkpoint() throws InterruptedException, IOException {
+        if (moveLog == null) {
+            throw new IllegalStateException("the cube is not durable");
+        }
+        checkpointLock.lockInterruptibly();
+        try {
+            writeCheckpoint();
+        } finally {
+            checkpointLock.unlock();
+        }
+    }
+
+    private void writeCheckpoint() throws InterruptedException, IOException {
+        Snapshot snapshot;
+        long checkpointVersion;
+        long segment;
+        scheduler.enter(Scheduler.SHOW, 0, 0);
+        try {
+            snapshot = takeSnapshot();
+            checkpointVersion = version.get();
+            try {
+                segment = moveLog.nextSegment();
+            } catch (IOException | RuntimeException e) {
+                dropSnapshot(snapshot);
+                throw e;
+            }
+        } finally {
+            scheduler.exit(Scheduler.SHOW, 0, 0);
+        }
+
+        try {
+            Checkpoint.write(durableDirectory, checkpointVersion, snapshot);
+        } finally {
+            dropSnapshot(snapshot);
+        }
+        moveLog.deleteBefore(segment);
+    }
+
+    // stops background work of a durable cube and forces its log, lets
+    // event listeners read the published events and stops them; the cube
+    // must not be used afterwards (nothing to do for other cubes)
+    public void close() throws IOException {
+        if (events != null) {
+            events.close();
+        }
+        if (moveLog == null) {
+            return;
+        }
+        if (durabilityTimer != null) {
+            // a checkpoint being written is let finish, interrupting it
+            // would close its file channel under it
+            durabilityTimer.shutdown();
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    if (durabilityTimer.awaitTermination(1, TimeUnit.MINUTES)) {
+                        break;
+                    }
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        moveLog.close();
+        if (durabilityFailure != null) {
+            throw new IOException("background work of the cube failed", durabilityFailure);
+        }
+    }
+
+    // waits till showing is possible and takes the state of the cube
+    private Snapshot enterShowing() throws InterruptedException {
+        if (combiner != null) {
+            return combiner.snapshot();
+        }
+        scheduler.enter(Scheduler.SHOW, 0, 0);
+        try {
+            return enterSnapshot();
+        } finally {
+            scheduler.exit(Scheduler.SHOW, 0, 0);
+        }
+    }
+
+    // like show(), but gives up if showing cannot start within the timeout
+    // and returns null
+    public String tryShow(long timeout, TimeUnit unit) throws InterruptedException {
+        textLength(6L * size * size);
+        if (!scheduler.tryEnter(Scheduler.SHOW, 0, 0, unit.toNanos(timeout))) {
+            return null;
+        }
+        Snapshot snapshot;
+        try {
+            snapshot = enterSnapshot();
+        } finally {
+            scheduler.exit(Scheduler.SHOW, 0, 0);
+        }
+        String result = executeShowing(snapshot);
+
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedException();
+        }
+        return result;
+    }
+
+    // shows the cube only if showing may start at once, null otherwise
+    public String tryShow() throws InterruptedException {
+        return tryShow(0, TimeUnit.NANOSECONDS);
+    }
+
+    // waits till showing is possible, then shows the cube;
+    // rotations are held off only while the state is taken
+    // (beforeShowing and afterShowing run then), the state is shown
+    // while they go on; a cube of more squares than a string holds
+    // (size above 18918) throws UnsupportedOperationException,
+    // show(channel, format) writes it instead
+    public String show() throws InterruptedException {
+        textLength(6L * size * size);
+        String result = executeShowing(enterShowing());
+
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedException();
+        }
+        return result;
+    }
+
+    // shows the cube like show(), but writes the state to the channel
+    // in the given format instead of building a string
+    public void show(WritableByteChannel channel, ShowFormat format)
+            throws InterruptedException, IOException {
+        Snapshot snapshot = enterShowing();
+        try {
+            ShowWriter.write(snapshot, format, channel);
+        } finally {
+            dropSnapshot(snapshot);
+        }
+
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedException();
+        }
+    }
+
+    public void show(OutputStream out, ShowFormat format) throws InterruptedException, IOException {
+        show(Channels.newChannel(out), format);
+    }
+
+    // waits till showing is possible, then shows only the squares changed
+    // by rotations after sinceVersion (a version of an earlier delta,
+    // -1 gives the whole cube): whole sides that were turned, otherwise
+    // the rows and columns that were changed
+    public ShowDelta showDelta(long sinceVersion) throws InterruptedException {
+        textLength((long) size * size);
+        scheduler.enter(Scheduler.SHOW, 0, 0);
+        ShowDelta delta;
+        try {
             beforeShowing.run();
-            String result = executeShowing();
+            delta = collectDelta(sinceVersion);
             afterShowing.run();
+            if (metrics != null) {
+                metrics.showed();
+            }
+            if (events != null) {
+                events.publishShow(delta.getVersion());
+            }
+        } finally {
+            scheduler.exit(Scheduler.SHOW, 0, 0);
+        }
+
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedException();
+        }
+        return delta;
+    }
 
-            mutex.acquireUninterruptibly();
-            activeGroup[3]--;
-
-            if (!Thread.currentThread().isInterrupted()) {
-                if (waitingGroup[0] > 0) {
-                    releaseGroup(0);
-                } else if (waitingGroup[1] > 0) {
-                    releaseGroup(1);
-                } else if (waitingGroup[2] > 0) {
-                    releaseGroup(2);
-                } else if (waitingGroup[3] > 0) {
-                    releaseGroup(3);
-                } else {
-                    mutex.release();
+    // the layer of rotations on the axis moving square (row, column)
+    // of the side; one layer of every axis moves each square
+    private int squareLayer(int axis, int side, int row, int column) {
+        if (side == axis) {
+            return 0;
+        }
+        if (side == oppositeSide(axis)) {
+            return size - 1;
+        }
+        for (int i = 0; i < 4; i++) {
+            if (RING_SIDES[axis][i] == side) {
+                int line = RING_COLUMNS[axis][i] ? column : row;
+                return RING_FLIPPED[axis][i] ? size - 1 - line : line;
+            }
+        }
+        throw new IllegalArgumentException("there is no side " + side);
+    }
+
+    private void checkSide(int side) {
+        if (side < 0 || side >= 6) {
+            throw new IllegalArgumentException("there is no side " + side);
+        }
+    }
+
+    private void checkLine(String line, int index) {
+        if (index < 0 || index >= size) {
+            throw new IllegalArgumentException(line + " " + index + " is not in a cube of size " + size);
+        }
+    }
+
+    // waits only for rotations moving the square, then gives its color;
+    // it gets in with rotations of the running axis if there are any
+    // (a layer of every axis moves the square), otherwise with
+    // the rotations turning the side; like the other region reads
+    // it is not counted in metrics' admissions
+    public int getSquare(int side, int row, int column) throws InterruptedException {
+        checkSide(side);
+        checkLine("row", row);
+        checkLine("column", column);
+        int axis = scheduler.runningGroup();
+        if (axis < 0 || axis == Scheduler.SHOW) {
+            axis = axis(side);
+        }
+        int layer = squareLayer(axis, side, row, column);
+        scheduler.enterUncounted(axis, layer, layer);
+        try {
+            return squares.get(side, index(side, row, column));
+        } finally {
+            scheduler.exit(axis, layer, layer);
+        }
+    }
+
+    // gives colors of the side row by row like show() does; rotations on
+    // other axes move squares of every side, so it waits for them,
+    // but rotations on the side's axis run meanwhile unless they turn it
+    public String getFace(int side) throws InterruptedException {
+        checkSide(side);
+        int axis = axis(side);
+        int layer = axisLayer(side, 0);
+        byte[] colors = new byte[textLength((long) size * size)];
+        scheduler.enterUncounted(axis, layer, layer);
+        try {
+            for (int row = 0; row < size; row++) {
+                for (int column = 0; column < size; column++) {
+                    colors[row * size + column] = digit(side, row, column);
                 }
-                return result;
             }
-            else {
-                throw new InterruptedException();
+        } finally {
+            scheduler.exit(axis, layer, layer);
+        }
+        return new String(colors, StandardCharsets.US_ASCII);
+    }
+
+    // gives colors of the 4 lines of other sides rotate(side, layer) moves,
+    // size squares each: in order of the sides 1, 2, 3, 4 for sides 0 and 5,
+    // 0, 4, 5, 2 for 1 and 3, 0, 1, 5, 3 for 2 and 4 (rows from left
+    // to right, columns from top to bottom); it waits only
+    // for rotations of the layer and for other axes
+    public String getLayerRing(int side, int layer) throws InterruptedException {
+        checkSide(side);
+        checkLine("layer", layer);
+        int axis = axis(side);
+        int axisLayer = axisLayer(side, layer);
+        byte[] colors = new byte[4 * size];
+        scheduler.enterUncounted(axis, axisLayer, axisLayer);
+        try {
+            for (int i = 0; i < 4; i++) {
+                int lineSide = RING_SIDES[axis][i];
+                boolean lineColumn = RING_COLUMNS[axis][i];
+                int index = ringIndex(axis, axisLayer, i);
+                for (int j = 0; j < size; j++) {
+                    colors[i * size + j] = lineColumn ? digit(lineSide, j, index) : digit(lineSide, index, j);
+                }
             }
+        } finally {
+            scheduler.exit(axis, axisLayer, axisLayer);
         }
-        else {
-            throw new InterruptedException();
+        return new String(colors, StandardCharsets.US_ASCII);
+    }
+
+    private byte digit(int side, int row, int column) {
+        return (byte) ('0' + squares.get(side, index(side, row, column)));
+    }
+
+    // must be called while no rotation runs
+    private ShowDelta collectDelta(long sinceVersion) {
+        long currentVersion = version.get();
+        if (sinceVersion > currentVersion) {
+            throw new IllegalArgumentException("version " + sinceVersion
+                    + " is newer than the cube's version " + currentVersion);
+        }
+
+        List<ShowDelta.Segment> segments = new ArrayList<>();
+        byte[] colors = new byte[size];
+        for (int side = 0; side < 6; side++) {
+            if (sideVersion[side] > sinceVersion) {
+                byte[] sideColors = new byte[textLength((long) size * size)];
+                for (int row = 0; row < size; row++) {
+                    for (int column = 0; column < size; column++) {
+                        sideColors[row * size + column] = digit(side, row, column);
+                    }
+                }
+                segments.add(new ShowDelta.Segment(side, ShowDelta.Kind.SIDE, 0,
+                        new String(sideColors, StandardCharsets.US_ASCII)));
+                continue;
+            }
+            for (int row = 0; row < size; row++) {
+                if (rowVersion[side][row] > sinceVersion) {
+                    for (int column = 0; column < size; column++) {
+                        colors[column] = digit(side, row, column);
+                    }
+                    segments.add(new ShowDelta.Segment(side, ShowDelta.Kind.ROW, row,
+                            new String(colors, StandardCharsets.US_ASCII)));
+                }
+            }
+            for (int column = 0; column < size; column++) {
+                if (columnVersion[side][column] > sinceVersion) {
+                    for (int row = 0; row < size; row++) {
+                        colors[row] = digit(side, row, column);
+                    }
+                    segments.add(new ShowDelta.Segment(side, ShowDelta.Kind.COLUMN, column,
+                            new String(colors, StandardCharsets.US_ASCII)));
+                }
+            }
         }
+        return new ShowDelta(size, currentVersion, segments);
     }
 }
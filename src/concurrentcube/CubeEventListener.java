@@ -0,0 +1,17 @@
+package concurrentcube;
+
+// gets events of a cube on its own thread, see CubeOptions.events();
+// events come in order of publishing, which for rotations running
+// concurrently on one axis may differ from the order of their versions
+public interface CubeEventListener {
+    // the layer looking from the side was rotated, giving the cube the version
+    void rotated(int side, int layer, long version);
+
+    // show() or showDelta() took the state of the cube at the version
+    default void shown(long version) {
+    }
+
+    // called after the events taken at once, before waiting for more
+    default void endOfBatch() {
+    }
+}
@@ -0,0 +1,110 @@
+package concurrentcube;
+
+// metrics of a cube at some moment, see Cube.getMetrics();
+// groups are the axes 0, 1, 2 of rotations and 3 for show()
+public class CubeMetrics {
+    public static final int SHOW = Scheduler.SHOW;
+
+    private final long uptimeNanos;
+    private final long[][] waitCounts;
+    private final long[] maxWaits;
+    private final int[] queueDepths;
+    private final long[] handoffs;
+    private final long[] rotationCounts;
+    private final long maxRotation;
+    private final long shows;
+
+    CubeMetrics(long uptimeNanos, long[][] waitCounts, long[] maxWaits, int[] queueDepths,
+                long[] handoffs, long[] rotationCounts, long maxRotation, long shows) {
+        this.uptimeNanos = uptimeNanos;
+        this.waitCounts = waitCounts;
+        this.maxWaits = maxWaits;
+        this.queueDepths = queueDepths;
+        this.handoffs = handoffs;
+        this.rotationCounts = rotationCounts;
+        this.maxRotation = maxRotation;
+        this.shows = shows;
+    }
+
+    // time since the cube was created
+    public long getUptimeNanos() {
+        return uptimeNanos;
+    }
+
+    // how many operations of the group were let in
+    // (in phase mode a phase is let in once for all its rotations;
+    // group SHOW also counts readers like fingerprint() and checkpoints,
+    // region reads like getSquare() are not counted)
+    public long getAdmissions(int group) {
+        return Histogram.total(waitCounts[group]);
+    }
+
+    // time operations of the group waited for admission, below which
+    // the percentile (0-100) of them are, accurate to 12.5%
+    public long getWaitNanos(int group, double percentile) {
+        return Histogram.percentile(waitCounts[group], percentile);
+    }
+
+    public long getMaxWaitNanos(int group) {
+        return maxWaits[group];
+    }
+
+    // how many operations of the group were waiting
+    public int getQueueDepth(int group) {
+        return queueDepths[group];
+    }
+
+    // how many times the group took the cube over from another group
+    public long getHandoffs(int group) {
+        return handoffs[group];
+    }
+
+    public long getRotations() {
+        return Histogram.total(rotationCounts);
+    }
+
+    // how many times show(), showAsync(), tryShow() or showDelta()
+    // took the state of the cube
+    public long getShows() {
+        return shows;
+    }
+
+    public double getRotationsPerSecond() {
+        return getRotations() * 1e9 / uptimeNanos;
+    }
+
+    public double getShowsPerSecond() {
+        return getShows() * 1e9 / uptimeNanos;
+    }
+
+    // time of moving squares by rotations (without beforeRotation and
+    // afterRotation), below which the percentile (0-100) of them are
+    public long getRotationNanos(double percentile) {
+        return Histogram.percentile(rotationCounts, percentile);
+    }
+
+    public long getMaxRotationNanos() {
+        return maxRotation;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder();
+        result.append("rotations: ").append(getRotations())
+                .append(String.format(" (%.1f/s)", getRotationsPerSecond()))
+                .append(", shows: ").append(getShows())
+                .append(String.format(" (%.1f/s)", getShowsPerSecond()))
+                .append(", rotation p50/p99/max: ").append(getRotationNanos(50))
+                .append('/').append(getRotationNanos(99))
+                .append('/').append(maxRotation).append(" ns");
+        for (int group = 0; group < 4; group++) {
+            result.append(group == SHOW ? "\nshow" : "\naxis " + group)
+                    .append(": wait p50/p99/max ").append(getWaitNanos(group, 50))
+                    .append('/').append(getWaitNanos(group, 99))
+                    .append('/').append(maxWaits[group]).append(" ns")
+                    .append(", waiting ").append(queueDepths[group])
+                    .append(", handoffs ").append(handoffs[group]);
+        }
+        return result.toString();
+    }
+}
@@ -0,0 +1,95 @@
+package concurrentcube;
+
+import java.util.function.Supplier;
+
+// CubeMetricsMXBean taking fresh metrics of the cube for every attribute
+class CubeMetricsBean implements CubeMetricsMXBean {
+    private final Supplier<CubeMetrics> metrics;
+
+    CubeMetricsBean(Supplier<CubeMetrics> metrics) {
+        this.metrics = metrics;
+    }
+
+    private interface GroupValue {
+        long of(CubeMetrics metrics, int group);
+    }
+
+    private long[] perGroup(GroupValue value) {
+        CubeMetrics current = metrics.get();
+        long[] result = new long[4];
+        for (int group = 0; group < 4; group++) {
+            result[group] = value.of(current, group);
+        }
+        return result;
+    }
+
+    @Override
+    public long getRotations() {
+        return metrics.get().getRotations();
+    }
+
+    @Override
+    public long getShows() {
+        return metrics.get().getShows();
+    }
+
+    @Override
+    public double getRotationsPerSecond() {
+        return metrics.get().getRotationsPerSecond();
+    }
+
+    @Override
+    public double getShowsPerSecond() {
+        return metrics.get().getShowsPerSecond();
+    }
+
+    @Override
+    public long getRotationP50Nanos() {
+        return metrics.get().getRotationNanos(50);
+    }
+
+    @Override
+    public long getRotationP99Nanos() {
+        return metrics.get().getRotationNanos(99);
+    }
+
+    @Override
+    public long getRotationMaxNanos() {
+        return metrics.get().getMaxRotationNanos();
+    }
+
+    @Override
+    public long[] getAdmissions() {
+        return perGroup(CubeMetrics::getAdmissions);
+    }
+
+    @Override
+    public long[] getWaitP50Nanos() {
+        return perGroup((metrics, group) -> metrics.getWaitNanos(group, 50));
+    }
+
+    @Override
+    public long[] getWaitP99Nanos() {
+        return perGroup((metrics, group) -> metrics.getWaitNanos(group, 99));
+    }
+
+    @Override
+    public long[] getWaitMaxNanos() {
+        return perGroup(CubeMetrics::getMaxWaitNanos);
+    }
+
+    @Override
+    public int[] getQueueDepths() {
+        CubeMetrics current = metrics.get();
+        int[] result = new int[4];
+        for (int group = 0; group < 4; group++) {
+            result[group] = current.getQueueDepth(group);
+        }
+        return result;
+    }
+
+    @Override
+    public long[] getHandoffs() {
+        return perGroup(CubeMetrics::getHandoffs);
+    }
+}
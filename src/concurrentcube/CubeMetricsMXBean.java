@@ -0,0 +1,31 @@
+package concurrentcube;
+
+// metrics of a cube over JMX, see Cube.registerMetrics();
+// arrays are indexed by group: axes 0, 1, 2 of rotations and 3 for show()
+public interface CubeMetricsMXBean {
+    long getRotations();
+
+    long getShows();
+
+    double getRotationsPerSecond();
+
+    double getShowsPerSecond();
+
+    long getRotationP50Nanos();
+
+    long getRotationP99Nanos();
+
+    long getRotationMaxNanos();
+
+    long[] getAdmissions();
+
+    long[] getWaitP50Nanos();
+
+    long[] getWaitP99Nanos();
+
+    long[] getWaitMaxNanos();
+
+    int[] getQueueDepths();
+
+    long[] getHandoffs();
+}
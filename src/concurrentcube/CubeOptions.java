@@ -0,0 +1,251 @@
+package concurrentcube;
+
+import java.nio.file.Path;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+// optional settings of a cube, the defaults give the plain heap cube
+public class CubeOptions {
+    public enum StorageMode {
+        // one byte array per side on the heap
+        HEAP,
+        // direct buffers outside of the heap
+        OFF_HEAP,
+        // a file mapped into memory
+        MAPPED
+    }
+
+    private StorageMode storageMode = StorageMode.HEAP;
+    private Path storageFile;
+    private Executor asyncExecutor = ForkJoinPool.commonPool();
+    private ForkJoinPool phasePool;
+    private int phaseLength;
+    private ForkJoinPool rotationPool;
+    private int parallelThreshold;
+    private int preferredAxis;
+    private boolean preferringAxis;
+    private boolean collectingMetrics;
+    private SchedulingPolicy schedulingPolicy = new RoundRobinPolicy();
+    private Path durableDirectory;
+    private SyncPolicy syncPolicy = SyncPolicy.NONE;
+    private long syncIntervalMillis = 100;
+    private long checkpointIntervalMillis;
+    private boolean trackingFingerprint;
+    private int eventCapacity;
+    private BackPressure backPressure = BackPressure.BLOCK;
+    private CubeEventListener[] eventListeners = new CubeEventListener[0];
+    private boolean flatCombining;
+
+    public CubeOptions storage(StorageMode storageMode) {
+        this.storageMode = storageMode;
+        return this;
+    }
+
+    // keeps squares in the given file (it is created or overwritten)
+    public CubeOptions mappedStorage(Path storageFile) {
+        this.storageMode = StorageMode.MAPPED;
+        this.storageFile = storageFile;
+        return this;
+    }
+
+    // runs operations started with rotateAsync() and showAsync()
+    // once they are let in
+    public CubeOptions asyncExecutor(Executor asyncExecutor) {
+        this.asyncExecutor = asyncExecutor;
+        return this;
+    }
+
+    // executes rotations in phases on the pool: a phase takes up to
+    // phaseLength queued rotations of one axis and rotates their layers
+    // in parallel, see PhaseScheduler
+    public CubeOptions phases(ForkJoinPool phasePool, int phaseLength) {
+        this.phasePool = phasePool;
+        this.phaseLength = phaseLength;
+        return this;
+    }
+
+    // splits the squares moved by one rotation of a cube of size at least
+    // parallelThreshold into chunks moved in parallel on the pool
+    public CubeOptions parallelRotation(ForkJoinPool rotationPool, int parallelThreshold) {
+        this.rotationPool = rotationPool;
+        this.parallelThreshold = parallelThreshold;
+        return this;
+    }
+
+    // lays sides out so that the squares moved by rotations on the axis
+    // are next to each other (by default rotations on axis 0 are,
+    // until the sides are turned by rotations on other axes);
+    // rotations on the axis move them with bulk copies and rotations
+    // turning the sides around it move all their squares to keep them so
+    public CubeOptions preferredAxis(int preferredAxis) {
+        if (preferredAxis < 0 || preferredAxis > 2) {
+            throw new IllegalArgumentException("there is no axis " + preferredAxis);
+        }
+        this.preferredAxis = preferredAxis;
+        this.preferringAxis = true;
+        return this;
+    }
+
+    // collects metrics of scheduling and rotations, see Cube.getMetrics()
+    // (without it nothing is measured)
+    public CubeOptions collectMetrics() {
+        this.collectingMetrics = true;
+        return this;
+    }
+
+    // decides which group of operations goes next when more of them wait,
+    // the policy must not be shared with another cube
+    public CubeOptions schedulingPolicy(SchedulingPolicy schedulingPolicy) {
+        this.schedulingPolicy = schedulingPolicy;
+        return this;
+    }
+
+    // logs every rotation in the directory and recovers the cube from it
+    // when it is created: the latest checkpoint is loaded, then rotations
+    // logged after it are replayed (see Cube.checkpoint() and MoveLog)
+    public CubeOptions durability(Path durableDirectory, SyncPolicy syncPolicy) {
+        this.durableDirectory = durableDirectory;
+        this.syncPolicy = syncPolicy;
+        return this;
+    }
+
+    // how often the log is forced with SyncPolicy.INTERVAL
+    public CubeOptions syncInterval(long syncIntervalMillis) {
+        this.syncIntervalMillis = syncIntervalMillis;
+        return this;
+    }
+
+    // how often a durable cube takes a checkpoint in the background,
+    // 0 (the default) leaves it to Cube.checkpoint()
+    public CubeOptions checkpointInterval(long checkpointIntervalMillis) {
+        this.checkpointIntervalMillis = checkpointIntervalMillis;
+        return this;
+    }
+
+    // keeps the cube's fingerprint up to date on every rotation, so that
+    // fingerprint(), contentEquals() and isSolved() answer at once
+    // (without it they read the whole cube)
+    public CubeOptions trackFingerprint() {
+        this.trackingFingerprint = true;
+        return this;
+    }
+
+    // publishes rotations and showing as events to the listeners through
+    // a ring buffer of the capacity (a power of two): every listener gets
+    // all events on its own thread, so slow listeners do not hold layers
+    // like beforeRotation and afterRotation do (as long as the buffer is
+    // not full, see BackPressure); Cube.close() stops the listeners
+    public CubeOptions events(int eventCapacity, BackPressure backPressure,
+                              CubeEventListener... eventListeners) {
+        if (eventCapacity <= 0 || Integer.bitCount(eventCapacity) != 1) {
+            throw new IllegalArgumentException("capacity " + eventCapacity + " is not a power of two");
+        }
+        this.eventCapacity = eventCapacity;
+        this.backPressure = backPressure;
+        this.eventListeners = eventListeners.clone();
+        return this;
+    }
+
+    // executes rotate() and show() by flat combining (see FlatCombiner):
+    // one thread executes operations of all waiting threads at once,
+    // which pays off for small cubes rotated by many threads;
+    // it cannot be used with phases
+    public CubeOptions flatCombining() {
+        this.flatCombining = true;
+        return this;
+    }
+
+    public StorageMode getStorageMode() {
+        return storageMode;
+    }
+
+    public Path getStorageFile() {
+        return storageFile;
+    }
+
+    public Executor getAsyncExecutor() {
+        return asyncExecutor;
+    }
+
+    public ForkJoinPool getPhasePool() {
+        return phasePool;
+    }
+
+    public int getPhaseLength() {
+        return phaseLength;
+    }
+
+    public ForkJoinPool getRotationPool() {
+        return rotationPool;
+    }
+
+    public int getParallelThreshold() {
+        return parallelThreshold;
+    }
+
+    public int getPreferredAxis() {
+        return preferredAxis;
+    }
+
+    public boolean isPreferringAxis() {
+        return preferringAxis;
+    }
+
+    public boolean isCollectingMetrics() {
+        return collectingMetrics;
+    }
+
+    public SchedulingPolicy getSchedulingPolicy() {
+        return schedulingPolicy;
+    }
+
+    public Path getDurableDirectory() {
+        return durableDirectory;
+    }
+
+    public SyncPolicy getSyncPolicy() {
+        return syncPolicy;
+    }
+
+    public long getSyncIntervalMillis() {
+        return syncIntervalMillis;
+    }
+
+    public long getCheckpointIntervalMillis() {
+        return checkpointIntervalMillis;
+    }
+
+    public boolean isTrackingFingerprint() {
+        return trackingFingerprint;
+    }
+
+    public int getEventCapacity() {
+        return eventCapacity;
+    }
+
+    public BackPressure getBackPressure() {
+        return backPressure;
+    }
+
+    public CubeEventListener[] getEventListeners() {
+        return eventListeners.clone();
+    }
+
+    public boolean isFlatCombining() {
+        return flatCombining;
+    }
+
+    Storage createStorage(int size) {
+        switch (storageMode) {
+            case OFF_HEAP:
+                return new OffHeapStorage(size);
+            case MAPPED:
+                if (storageFile == null) {
+                    throw new IllegalArgumentException("mapped storage needs a file");
+                }
+                return new OffHeapStorage(size, storageFile);
+            default:
+                return new HeapStorage(size);
+        }
+    }
+}
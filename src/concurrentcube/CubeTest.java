@@ -1,12 +1,35 @@
 package concurrentcube;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 
 public class CubeTest {
@@ -400,4 +423,1432 @@ public class CubeTest {
         long endTime = System.nanoTime();
         assert(((endTime - startTime) / 1000000) < 8000);
     }
+
+    // rotates cubes kept on the heap, in direct buffers and in a mapped file
+    // the same way, checks if their states are the same
+    @Test
+    public void testOffHeapStorage() throws InterruptedException, IOException {
+        int size = 30;
+        int trials = 10000;
+        Path file = Files.createTempFile("cube", ".bin");
+        file.toFile().deleteOnExit();
+
+        Cube cube = new Cube(size, (x, y) -> {}, (x, y) -> {}, () -> {}, () -> {});
+        Cube cubeOffHeap = new Cube(size, (x, y) -> {}, (x, y) -> {}, () -> {}, () -> {},
+                new CubeOptions().storage(CubeOptions.StorageMode.OFF_HEAP));
+        Cube cubeMapped = new Cube(size, (x, y) -> {}, (x, y) -> {}, () -> {}, () -> {},
+                new CubeOptions().mappedStorage(file));
+
+        Random r = new Random();
+        for (int i = 0; i < trials; i++) {
+            int side = r.nextInt(6);
+            int layer = r.nextInt(size);
+            cube.rotate(side, layer);
+            cubeOffHeap.rotate(side, layer);
+            cubeMapped.rotate(side, layer);
+        }
+        assertEquals(cube.show(), cubeOffHeap.show());
+        assertEquals(cube.show(), cubeMapped.show());
+    }
+
+    // checks if rotating does not allocate memory:
+    // measures bytes allocated by the current thread after warming up
+    // (layers are below 128, so boxing side and layer for hooks is cached)
+    @Test
+    public void testRotationAllocation() throws InterruptedException {
+        int size = 100;
+        int trials = 1000000;
+        com.sun.management.ThreadMXBean threadBean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+
+        Cube cube = new Cube(size, (x, y) -> {}, (x, y) -> {}, () -> {}, () -> {});
+
+        for (int i = 0; i < trials; i++) {
+            cube.rotate(i % 6, (i * 7) % size);
+        }
+        long allocatedBefore = threadBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < trials; i++) {
+            cube.rotate(i % 6, (i * 7) % size);
+        }
+        long allocated = threadBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+        // even one byte a rotation would add up to about 1 MB
+        assertTrue(allocated < 64 * 1024, allocated + " bytes allocated");
+    }
+
+    // executes batches of rotations which cancel out (also executes show())
+    // using more than one thread
+    // checks if show() never sees a batch half done
+    @Test
+    public void testRotateAllAtomic() throws InterruptedException {
+        int trials = 200;
+        int size = 20;
+        int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        var failures = new Object() { int value = 0; };
+
+        Cube cube = new Cube(size, (x, y) -> {}, (x, y) -> {}, () -> {}, () -> {});
+        String perfect = cube.show();
+
+        Random r = new Random();
+        for (int i = 0; i < trials; i++) {
+            int side = r.nextInt(6);
+            int layer = r.nextInt(size);
+            int otherSide = r.nextInt(6);
+            int otherLayer = r.nextInt(size);
+            int[] sides = {side, otherSide, cube.oppositeSide(otherSide), cube.oppositeSide(side)};
+            int[] layers = {layer, otherLayer, size - 1 - otherLayer, size - 1 - layer};
+            executor.execute(() -> {
+                try {
+                    cube.rotateAll(sides, layers);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            });
+
+            executor.execute(() -> {
+                try {
+                    if (!cube.show().equals(perfect)) {
+                        synchronized (failures) {
+                            failures.value++;
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            });
+        }
+
+        executor.shutdown();
+        executor.awaitTermination(20, TimeUnit.SECONDS);
+
+        assertEquals(0, failures.value);
+        assertEquals(perfect, cube.show());
+    }
+
+    // optimizes random sequences full of rotations cancelling out,
+    // checks if the optimized sequence gives the same state and is shorter
+    @Test
+    public void testMoveSequenceOptimize() throws InterruptedException {
+        int size = 5;
+        int trials = 2000;
+
+        Random r = new Random();
+        int[] sides = new int[trials];
+        int[] layers = new int[trials];
+        for (int i = 0; i < trials; i++) {
+            sides[i] = r.nextInt(3) == 0 ? r.nextInt(6) : (i % 2 == 0 ? 1 : 3);
+            layers[i] = r.nextInt(2);
+        }
+        MoveSequence moves = new MoveSequence(sides, layers);
+        MoveSequence optimized = moves.optimize(size);
+
+        Cube cube = new Cube(size, (x, y) -> {}, (x, y) -> {}, () -> {}, () -> {});
+        Cube cubeOptimized = new Cube(size, (x, y) -> {}, (x, y) -> {}, () -> {}, () -> {});
+        for (int i = 0; i < trials; i++) {
+            cube.rotate(sides[i], layers[i]);
+        }
+        cubeOptimized.rotateAll(optimized);
+
+        assertEquals(cube.show(), cubeOptimized.show());
+        assert(optimized.length() < moves.length());
+
+        MoveSequence identity = new MoveSequence(new int[]{2, 2, 2, 2, 0, 5}, new int[]{1, 1, 1, 1, 2, 2});
+        assertEquals(0, identity.optimize(size).length());
+    }
+
+    // queues rotations on axis1 and then rotations conversely (also shows)
+    // from one thread without waiting
+    // checks if result is like at the beginning
+    @Test
+    public void testAsync() throws InterruptedException {
+        int trials = 1000;
+        int size = 10;
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+
+        Cube cube = new Cube(size, (x, y) -> {}, (x, y) -> {}, () -> {}, () -> {},
+                new CubeOptions().asyncExecutor(executor));
+        String perfect = cube.show();
+
+        List<CompletableFuture<?>> futures = new ArrayList<>();
+        int[] randomLayer = new int[trials];
+        Random r = new Random();
+        for (int i = 0; i < trials; i++) {
+            randomLayer[i] = r.nextInt(size);
+            futures.add(cube.rotateAsync(1, randomLayer[i]));
+            futures.add(cube.showAsync());
+        }
+        for (int i = trials - 1; i >= 0; i--) {
+            futures.add(cube.rotateAsync(3, size - 1 - randomLayer[i]));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+
+        assertEquals(perfect, cube.showAsync().join());
+        executor.shutdown();
+    }
+
+    // cancels showAsync() before and after the state is taken and lets
+    // the executor reject showing, checks that no snapshot is left
+    // for rotations to keep copying squares into
+    @Test
+    public void testCancelledShowAsync() throws InterruptedException {
+        List<Runnable> queued = new ArrayList<>();
+        var rejecting = new Object() { boolean value = false; };
+        Cube cube = new Cube(3, (x, y) -> {}, (x, y) -> {}, () -> {}, () -> {},
+                new CubeOptions().asyncExecutor(task -> {
+                    if (rejecting.value) {
+                        throw new RejectedExecutionException();
+                    }
+                    queued.add(task);
+                }));
+
+        CompletableFuture<String> early = cube.showAsync();
+        early.cancel(false);
+        CompletableFuture<String> late = cube.showAsync();
+        CompletableFuture<String> rejected = cube.showAsync();
+        CompletableFuture<String> shown = cube.showAsync();
+        // takes the states, showing one of them is rejected
+        List<Runnable> taking = new ArrayList<>(queued);
+        queued.clear();
+        taking.get(0).run();
+        taking.get(1).run();
+        rejecting.value = true;
+        taking.get(2).run();
+        rejecting.value = false;
+        taking.get(3).run();
+        assertTrue(rejected.isCompletedExceptionally());
+        assertEquals(2, cube.activeSnapshots());
+
+        late.cancel(false);
+        for (Runnable task : new ArrayList<>(queued)) {
+            task.run();
+        }
+        assertEquals(0, cube.activeSnapshots());
+        assertEquals(cube.show(), shown.join());
+    }
+
+    // rotates on axis1 and then rotates conversely (also executes show())
+    // in phase mode using more than one thread,
+    // checks if result is like at the beginning and phases were executed;
+    // then rotates on all axes using one thread,
+    // checks if result is like rotating without phases
+    @Test
+    public void testPhases() throws InterruptedException {
+        int trials = 300;
+        int size = 12;
+        int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        ForkJoinPool pool = new ForkJoinPool(4);
+
+        Cube cube = new Cube(size, (x, y) -> {}, (x, y) -> {}, () -> {}, () -> {},
+                new CubeOptions().phases(pool, 16));
+        Cube cubePerfect = new Cube(size, (x, y) -> {}, (x, y) -> {}, () -> {}, () -> {});
+
+        Random r = new Random();
+        for (int i = 0; i < trials; i++) {
+            int side = r.nextBoolean() ? 1 : 3;
+            int layer = r.nextInt(size);
+            executor.execute(() -> {
+                try {
+                    cube.rotate(side, layer);
+                    cube.rotate(side, layer);
+                    cube.rotate(cube.oppositeSide(side), size - 1 - layer);
+                    cube.rotate(cube.oppositeSide(side), size - 1 - layer);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            });
+            executor.execute(() -> {
+                try {
+                    cube.show();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            });
+        }
+
+        executor.shutdown();
+        executor.awaitTermination(20, TimeUnit.SECONDS);
+
+        assertEquals(cubePerfect.show(), cube.show());
+        assertEquals(4 * trials, cube.getPhaseStatistics().getRotations());
+
+        for (int i = 0; i < trials; i++) {
+            int side = r.nextInt(6);
+            int layer = r.nextInt(size);
+            cube.rotate(side, layer);
+            cubePerfect.rotate(side, layer);
+        }
+        pool.shutdown();
+
+        assertEquals(cubePerfect.show(), cube.show());
+    }
+
+    // shows a big cube while another thread keeps executing batches
+    // of rotations which cancel out
+    // checks if every show() gives the state like at the beginning
+    @Test
+    public void testShowSnapshot() throws InterruptedException {
+        int size = 300;
+        int trials = 20;
+        var stop = new Object() { volatile boolean value = false; };
+
+        Cube cube = new Cube(size, (x, y) -> {}, (x, y) -> {}, () -> {}, () -> {});
+        String perfect = cube.show();
+
+        Thread rotating = new Thread(() -> {
+            Random r = new Random();
+            while (!stop.value) {
+                int side = r.nextInt(6);
+                int layer = r.nextInt(size);
+                int otherSide = r.nextInt(6);
+                int otherLayer = r.nextInt(size);
+                try {
+                    cube.rotateAll(
+                            new int[]{side, otherSide, cube.oppositeSide(otherSide), cube.oppositeSide(side)},
+                            new int[]{layer, otherLayer, size - 1 - otherLayer, size - 1 - layer});
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        rotating.start();
+
+        for (int i = 0; i < trials; i++) {
+            assertEquals(perfect, cube.show());
+        }
+        stop.value = true;
+        rotating.join();
+    }
+
+    // rotates randomly, then writes the state in the text and binary formats
+    // checks if both give the same state as show()
+    @Test
+    public void testShowFormats() throws InterruptedException, IOException {
+        int size = 37;
+        int trials = 1000;
+
+        Cube cube = new Cube(size, (x, y) -> {}, (x, y) -> {}, () -> {}, () -> {});
+        Random r = new Random();
+        for (int i = 0; i < trials; i++) {
+            cube.rotate(r.nextInt(6), r.nextInt(size));
+        }
+        String expected = cube.show();
+
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        cube.show(text, ShowFormat.TEXT);
+        assertEquals(expected, text.toString());
+
+        ByteArrayOutputStream binary = new ByteArrayOutputStream();
+        cube.show(binary, ShowFormat.BINARY);
+        assertEquals(ShowWriter.HEADER_LENGTH + (6 * size * size * 3 + 7) / 8, binary.size());
+
+        ReadableByteChannel channel = Channels.newChannel(new ByteArrayInputStream(binary.toByteArray()));
+        assertEquals(size, ShowWriter.readHeader(channel));
+        StringBuilder decoded = new StringBuilder();
+        ShowWriter.readRows(channel, size, (side, row, colors) -> {
+            for (byte color : colors) {
+                decoded.append(color);
+            }
+        });
+        assertEquals(expected, decoded.toString());
+    }
+
+    // rotates in rounds of few rotations, after each round applies
+    // the delta to the previous state, checks if it gives show()
+    @Test
+    public void testShowDelta() throws InterruptedException {
+        int size = 9;
+        int rounds = 200;
+
+        Cube cube = new Cube(size, (x, y) -> {}, (x, y) -> {}, () -> {}, () -> {});
+        ShowDelta delta = cube.showDelta(-1);
+        assertEquals(6, delta.getSegments().size());
+        String shown = delta.applyTo(cube.show());
+        assertEquals(cube.show(), shown);
+
+        Random r = new Random();
+        for (int i = 0; i < rounds; i++) {
+            int rotations = r.nextInt(3);
+            for (int j = 0; j < rotations; j++) {
+                cube.rotate(r.nextInt(6), r.nextInt(size));
+            }
+            delta = cube.showDelta(delta.getVersion());
+            assertTrue(delta.getSegments().size() <= 6 * rotations);
+            shown = delta.applyTo(shown);
+            assertEquals(cube.show(), shown);
+        }
+    }
+
+    // rotates a big cube with the squares of each rotation moved
+    // in parallel and a plain one the same way, checks if they are equal
+    @Test
+    public void testParallelRotation() throws InterruptedException {
+        int size = 2100;
+        int trials = 200;
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        Cube parallel = new Cube(size, (x, y) -> {}, (x, y) -> {}, () -> {}, () -> {},
+                new CubeOptions().parallelRotation(pool, 2000));
+        Cube plain = new Cube(size, (x, y) -> {}, (x, y) -> {}, () -> {}, () -> {});
+        Random r = new Random();
+        for (int i = 0; i < trials; i++) {
+            int side = r.nextInt(6);
+            int layer = r.nextInt(size);
+            parallel.rotate(side, layer);
+            plain.rotate(side, layer);
+        }
+        pool.shutdown();
+
+        assertEquals(plain.show(), parallel.show());
+    }
+
+    // rotates cubes laid out for each axis and a plain one the same way
+    // (on all axes, also through snapshots), checks if they are equal
+    @Test
+    public void testPreferredAxis() throws InterruptedException {
+        int size = 13;
+        int trials = 2000;
+
+        Cube plain = new Cube(size, (x, y) -> {}, (x, y) -> {}, () -> {}, () -> {});
+        Cube[] cubes = new Cube[3];
+        for (int axis = 0; axis < 3; axis++) {
+            cubes[axis] = new Cube(size, (x, y) -> {}, (x, y) -> {}, () -> {}, () -> {},
+                    new CubeOptions().preferredAxis(axis));
+        }
+        Random r = new Random();
+        for (int i = 0; i < trials; i++) {
+            int side = r.nextInt(6);
+            int layer = r.nextInt(size);
+            plain.rotate(side, layer);
+            for (Cube cube : cubes) {
+                cube.rotate(side, layer);
+            }
+        }
+
+        for (Cube cube : cubes) {
+            assertEquals(plain.show(), cube.show());
+        }
+    }
+
+    // turns faces on all axes of cubes laid out for each axis,
+    // checks if lines moved by rotations on the axis stay next to each other
+    // (also after turning the whole cube) and if the cubes equal a plain one
+    @Test
+    public void testPreferredAxisLayout() throws InterruptedException {
+        int size = 6;
+        int trials = 500;
+
+        Cube plain = new Cube(size, (x, y) -> {}, (x, y) -> {}, () -> {}, () -> {});
+        Cube[] cubes = new Cube[3];
+        for (int axis = 0; axis < 3; axis++) {
+            cubes[axis] = new Cube(size, (x, y) -> {}, (x, y) -> {}, () -> {}, () -> {},
+                    new CubeOptions().preferredAxis(axis));
+        }
+        Random r = new Random();
+        for (int i = 0; i < trials; i++) {
+            int side = r.nextInt(6);
+            int layer = r.nextBoolean() ? 0 : size - 1;
+            if (i % 10 == 0) {
+                plain.rotateRange(side, 0, size - 1);
+                for (Cube cube : cubes) {
+                    cube.rotateRange(side, 0, size - 1);
+                }
+            } else {
+                plain.rotate(side, layer);
+                for (Cube cube : cubes) {
+                    cube.rotate(side, layer);
+                }
+            }
+        }
+
+        for (int axis = 0; axis < 3; axis++) {
+            assertTrue(cubes[axis].isLaidOutFor(axis));
+            assertEquals(plain.show(), cubes[axis].show());
+        }
+    }
+
+    // rotates on all axes and shows using more threads with metrics collected,
+    // checks if metrics count every operation (also over JMX)
+    @Test
+    public void testMetrics() throws Exception {
+        int size = 10;
+        int trials = 1000;
+        int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+        Cube cube = new Cube(size, (x, y) -> {}, (x, y) -> {}, () -> {}, () -> {},
+                new CubeOptions().collectMetrics());
+        for (int i = 0; i < trials; i++) {
+            int side = i % 6;
+            int layer = i % size;
+            executor.execute(() -> {
+                try {
+                    cube.rotate(side, layer);
+                    if (layer == 0) {
+                        cube.show();
+                    }
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            });
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(20, TimeUnit.SECONDS));
+
+        CubeMetrics metrics = cube.getMetrics();
+        assertEquals(trials, metrics.getRotations());
+        assertEquals(trials / size, metrics.getShows());
+        assertEquals(trials, metrics.getAdmissions(0) + metrics.getAdmissions(1)
+                + metrics.getAdmissions(2));
+        assertTrue(metrics.getHandoffs(CubeMetrics.SHOW) > 0);
+        assertTrue(metrics.getWaitNanos(0, 100) <= metrics.getMaxWaitNanos(0));
+        for (int group = 0; group < 4; group++) {
+            assertEquals(0, metrics.getQueueDepth(group));
+        }
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("concurrentcube:type=Cube,name=testMetrics");
+        cube.registerMetrics(name);
+        try {
+            assertEquals((long) trials, server.getAttribute(name, "Rotations"));
+            assertEquals(4, ((int[]) server.getAttribute(name, "QueueDepths")).length);
+        } finally {
+            server.unregisterMBean(name);
+        }
+
+        Cube plain = new Cube(size, (x, y) -> {}, (x, y) -> {}, () -> {}, () -> {});
+        assertEquals(null, plain.getMetrics());
+    }
+
+    // shows the cube in every way (also with flat combining), checks
+    // if metrics count those shows but not other readers of the cube
+    @Test
+    public void testShowMetrics() throws Exception {
+        int size = 4;
+
+        for (boolean combining : new boolean[] {false, true}) {
+            CubeOptions options = new CubeOptions().collectMetrics();
+            if (combining) {
+                options.flatCombining();
+            }
+            Cube cube = new Cube(size, (x, y) -> {}, (x, y) -> {}, () -> {}, () -> {}, options);
+            cube.rotate(1, 2);
+            cube.show();
+            cube.tryShow();
+            cube.showAsync().get(5, TimeUnit.SECONDS);
+            cube.show(new ByteArrayOutputStream(), ShowFormat.TEXT);
+            cube.showDelta(-1);
+            cube.fingerprint();
+            cube.isSolved();
+
+            assertEquals(5, cube.getMetrics().getShows());
+            assertEquals(1, cube.getMetrics().getRotations());
+        }
+    }
+
+    // checks which groups the policies pick
+    @Test
+    public void testSchedulingPolicyChoices() {
+        long now = System.nanoTime();
+        int[] waiting = {1, 0, 5, 2};
+        long[] oldestWait = {now - 100, 0, now - 10, now - 1000};
+
+        SchedulingPolicy roundRobin = new RoundRobinPolicy();
+        assertEquals(2, roundRobin.next(1, waiting, oldestWait));
+        assertEquals(0, roundRobin.next(3, waiting, oldestWait));
+        assertFalse(roundRobin.mayJoin(2, waiting, oldestWait, 0));
+
+        SchedulingPolicy throughput = new ThroughputPolicy(10, 2);
+        // the most waiting operations, until groups 0 and 3
+        // have been passed over twice
+        assertEquals(2, throughput.next(1, waiting, oldestWait));
+        assertEquals(2, throughput.next(2, waiting, oldestWait));
+        assertEquals(3, throughput.next(2, waiting, oldestWait));
+        assertEquals(0, throughput.next(3, waiting, oldestWait));
+        assertTrue(throughput.mayJoin(2, waiting, oldestWait, 9));
+        assertFalse(throughput.mayJoin(2, waiting, oldestWait, 10));
+
+        SchedulingPolicy deadline = new DeadlinePolicy(TimeUnit.HOURS.toNanos(1));
+        assertEquals(3, deadline.next(0, waiting, oldestWait));
+        assertTrue(deadline.mayJoin(2, waiting, oldestWait, 1000));
+        assertFalse(new DeadlinePolicy(0).mayJoin(2, waiting, oldestWait, 0));
+    }
+
+    // rotates on all axes and shows using more threads under every policy,
+    // checks if all operations finish and every color stays on size^2 squares
+    @Test
+    public void testSchedulingPolicies() throws InterruptedException {
+        int size = 8;
+        int trials = 3000;
+        int threads = 8;
+        SchedulingPolicy[] policies = {
+                new RoundRobinPolicy(),
+                new ThroughputPolicy(100, 3),
+                new DeadlinePolicy(TimeUnit.MICROSECONDS.toNanos(100))
+        };
+
+        for (SchedulingPolicy policy : policies) {
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            Cube cube = new Cube(size, (x, y) -> {}, (x, y) -> {}, () -> {}, () -> {},
+                    new CubeOptions().schedulingPolicy(policy).collectMetrics());
+            for (int i = 0; i < trials; i++) {
+                int side = i % 6;
+                int layer = (i / 6) % size;
+                executor.execute(() -> {
+                    try {
+                        if (layer == 0 && side == 0) {
+                            cube.show();
+                        } else {
+                            cube.rotate(side, layer);
+                        }
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    }
+                });
+            }
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(20, TimeUnit.SECONDS));
+
+            assertEquals(trials, cube.getMetrics().getRotations() + cube.getMetrics().getShows());
+            int[] colors = new int[6];
+            for (char color : cube.show().toCharArray()) {
+                colors[color - '0']++;
+            }
+            for (int color = 0; color < 6; color++) {
+                assertEquals(size * size, colors[color]);
+            }
+        }
+    }
+
+    // holds a rotation, checks if tryRotate() and tryShow() give up
+    // on conflicting operations and leave the cube working
+    @Test
+    public void testTryOperations() throws InterruptedException {
+        int size = 4;
+        CountDownLatch holding = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        Cube cube = new Cube(size, (side, layer) -> {
+            if (side == 0 && layer == 0) {
+                holding.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        }, (x, y) -> {}, () -> {}, () -> {});
+
+        Thread held = new Thread(() -> {
+            try {
+                cube.rotate(0, 0);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        });
+        held.start();
+        holding.await();
+
+        assertTrue(cube.tryRotate(0, 1));
+        assertEquals(null, cube.tryShow());
+        assertEquals(null, cube.tryShow(50, TimeUnit.MILLISECONDS));
+        assertFalse(cube.tryRotate(1, 0, 50, TimeUnit.MILLISECONDS));
+        assertFalse(cube.tryRotate(0, 0, 10, TimeUnit.MILLISECONDS));
+
+        Thread waiting = new Thread(() -> {
+            try {
+                cube.rotate(1, 2);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        });
+        waiting.start();
+        release.countDown();
+        held.join();
+        waiting.join();
+
+        Cube expected = new Cube(size, (x, y) -> {}, (x, y) -> {}, () -> {}, () -> {});
+        expected.rotate(0, 0);
+        expected.rotate(0, 1);
+        expected.rotate(1, 2);
+        assertEquals(expected.show(), cube.tryShow(1, TimeUnit.SECONDS));
+    }
+
+    // holds show() in phase mode, checks if tryRotate() gives up
+    // within its timeout and the rotations given up are not executed
+    @Test
+    public void testTryOperationsInPhases() throws InterruptedException {
+        int size = 4;
+        CountDownLatch holding = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ForkJoinPool pool = new ForkJoinPool(2);
+        Cube cube = new Cube(size, (x, y) -> {}, (x, y) -> {}, () -> {
+            holding.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }, () -> {}, new CubeOptions().phases(pool, 4));
+        String solved = new Cube(size, (x, y) -> {}, (x, y) -> {}, () -> {}, () -> {}).show();
+
+        Thread held = new Thread(() -> {
+            try {
+                cube.show();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        });
+        held.start();
+        holding.await();
+
+        long start = System.nanoTime();
+        assertFalse(cube.tryRotate(0, 1));
+        assertFalse(cube.tryRotate(1, 0, 50, TimeUnit.MILLISECONDS));
+        assertFalse(cube.tryRotate(2, 3, 50, TimeUnit.MILLISECONDS));
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+
+        release.countDown();
+        held.join();
+        assertTrue(cube.tryRotate(0, 1, 1, TimeUnit.SECONDS));
+        cube.rotate(0, 1);
+        cube.rotate(0, 1);
+        cube.rotate(0, 1);
+        assertEquals(solved, cube.show());
+        pool.shutdown();
+    }
+
+    // rotates a durable cube, takes a checkpoint and rotates more,
+    // then leaves it without closing; checks if a cube recovered
+    // from its directory is in the same state
+    @Test
+    public void testRecovery() throws InterruptedException, IOException {
+        int size = 7;
+        int trials = 500;
+        Path directory = Files.createTempDirectory("cube");
+
+        Cube cube = new Cube(size, (x, y) -> {}, (x, y) -> {}, () -> {}, () -> {},
+                new CubeOptions().durability(directory, SyncPolicy.COMMIT));
+        Random r = new Random();
+        for (int i = 0; i < trials; i++) {
+            cube.rotate(r.nextInt(6), r.nextInt(size));
+            if (i == trials / 2) {
+                cube.checkpoint();
+            }
+        }
+        String expected = cube.show();
+
+        Cube recovered = new Cube(size, (x, y) -> {}, (x, y) -> {}, () -> {}, () -> {},
+                new CubeOptions().durability(directory, SyncPolicy.COMMIT));
+        assertEquals(expected, recovered.show());
+        recovered.rotate(0, 0);
+        expected = recovered.show();
+        recovered.close();
+
+        Cube again = new Cube(size, (x, y) -> {}, (x, y) -> {}, () -> {}, () -> {},
+                new CubeOptions().durability(directory, SyncPolicy.NONE));
+        assertEquals(expected, again.show());
+        again.close();
+        deleteDirectory(directory);
+    }
+
+    // takes a checkpoint of a durable cube kept in a mapped file,
+    // checks if a cube recovered into another mapped file is the same
+    @Test
+    public void testMappedCheckpoint() throws InterruptedException, IOException {
+        int size = 40;
+        Path directory = Files.createTempDirectory("cube");
+        Path file = Files.createTempFile("cube", ".bin");
+        Path recoveredFile = Files.createTempFile("cube", ".bin");
+        file.toFile().deleteOnExit();
+        recoveredFile.toFile().deleteOnExit();
+
+        Cube cube = new Cube(size, (x, y) -> {}, (x, y) -> {}, () -> {}, () -> {},
+                new CubeOptions().mappedStorage(file).durability(directory, SyncPolicy.NONE));
+        Random r = new Random();
+        for (int i = 0; i < 1000; i++) {
+            cube.rotate(r.nextInt(6), r.nextInt(size));
+        }
+        cube.checkpoint();
+        String expected = cube.show();
+        cube.close();
+
+        Cube recovered = new Cube(size, (x, y) -> {}, (x, y) -> {}, () -> {}, () -> {},
+                new CubeOptions().mappedStorage(recoveredFile).durability(directory, SyncPolicy.NONE));
+        assertEquals(expected, recovered.show());
+        recovered.close();
+
+        // a checkpoint of another size is refused before anything is read
+        assertThrows(IllegalArgumentException.class, () -> new Cube(size + 1, (x, y) -> {}, (x, y) -> {},
+                () -> {}, () -> {}, new CubeOptions().durability(directory, SyncPolicy.NONE)));
+        deleteDirectory(directory);
+    }
+
+    // rotates a durable cube using more threads while it takes checkpoints
+    // in the background, checks if the recovered cube is in the same state
+    @Test
+    public void testRecoveryWithCheckpoints() throws InterruptedException, IOException {
+        int size = 30;
+        int trials = 20000;
+        int threads = 4;
+        Path directory = Files.createTempDirectory("cube");
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+        Cube cube = new Cube(size, (x, y) -> {}, (x, y) -> {}, () -> {}, () -> {},
+                new CubeOptions().durability(directory, SyncPolicy.INTERVAL)
+                        .syncInterval(1).checkpointInterval(5));
+        for (int i = 0; i < trials; i++) {
+            int side = i % 6;
+            int layer = (i * 7) % size;
+            executor.execute(() -> {
+                try {
+                    cube.rotate(side, layer);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            });
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(20, TimeUnit.SECONDS));
+        String expected = cube.show();
+        cube.close();
+
+        Cube recovered = new Cube(size, (x, y) -> {}, (x, y) -> {}, () -> {}, () -> {},
+                new CubeOptions().durability(directory, SyncPolicy.NONE));
+        assertEquals(expected, recovered.show());
+        recovered.close();
+        deleteDirectory(directory);
+    }
+
+    // manual checkpoints taken while background ones are written
+    // neither fail nor leave a broken checkpoint behind
+    @Test
+    public void testConcurrentCheckpoints() throws InterruptedException, IOException {
+        int size = 10;
+        Path directory = Files.createTempDirectory("cube");
+        Cube cube = new Cube(size, (x, y) -> {}, (x, y) -> {}, () -> {}, () -> {},
+                new CubeOptions().durability(directory, SyncPolicy.NONE).checkpointInterval(1));
+        Random r = new Random();
+        long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(500);
+        while (System.nanoTime() < end) {
+            cube.checkpoint();
+            // checkpoints of the same version as well as of newer ones
+            if (r.nextBoolean()) {
+                cube.rotate(r.nextInt(6), r.nextInt(size));
+            }
+        }
+        String expected = cube.show();
+        cube.close();
+
+        Cube recovered = new Cube(size, (x, y) -> {}, (x, y) -> {}, () -> {}, () -> {},
+                new CubeOptions().durability(directory, SyncPolicy.NONE));
+        assertEquals(expected, recovered.show());
+        recovered.close();
+        deleteDirectory(directory);
+    }
+
+    private static void deleteDirectory(Path directory) throws IOException {
+        try (var files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    // writes a long sequence of rotations in runs on one axis to a move file,
+    // replays it with and without a pool, checks if the cubes are in
+    // the state of rotating them one by one
+    @Test
+    public void testReplay() throws InterruptedException, IOException {
+        int size = 600;
+        int trials = 50000;
+        Path file = Files.createTempFile("moves", ".log");
+        file.toFile().deleteOnExit();
+
+        int[] sides = new int[trials];
+        int[] layers = new int[trials];
+        Random r = new Random();
+        int axis = 0;
+        for (int i = 0; i < trials; i++) {
+            if (r.nextInt(50) == 0) {
+                axis = r.nextInt(3);
+            }
+            sides[i] = r.nextBoolean() ? axis : Cube.opposite(axis);
+            layers[i] = r.nextInt(size);
+        }
+        new MoveSequence(sides, layers).write(file);
+
+        Cube expected = new Cube(size, (x, y) -> {}, (x, y) -> {}, () -> {}, () -> {});
+        for (int i = 0; i < trials; i++) {
+            expected.rotate(sides[i], layers[i]);
+        }
+        Cube sequential = new Cube(size, (x, y) -> {}, (x, y) -> {}, () -> {}, () -> {});
+        assertEquals(trials, sequential.replay(file, null));
+        assertEquals(expected.show(), sequential.show());
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        Cube parallel = new Cube(size, (x, y) -> {}, (x, y) -> {}, () -> {}, () -> {});
+        assertEquals(trials, parallel.replay(file, pool));
+        pool.shutdown();
+        assertEquals(expected.show(), parallel.show());
+    }
+
+    // rotates cubes with and without a tracked fingerprint (and one laid
+    // out differently) the same way, checks if their fingerprints agree,
+    // if isSolved() and contentEquals() follow them and if undoing
+    // the rotations gives back the fingerprint of the solved cube
+    @Test
+    public void testFingerprint() throws InterruptedException {
+        int size = 7;
+        Cube untracked = new Cube(size, (x, y) -> {}, (x, y) -> {}, () -> {}, () -> {});
+        Cube tracked = new Cube(size, (x, y) -> {}, (x, y) -> {}, () -> {}, () -> {},
+                new CubeOptions().trackFingerprint());
+        Cube otherLayout = new Cube(size, (x, y) -> {}, (x, y) -> {}, () -> {}, () -> {},
+                new CubeOptions().trackFingerprint().preferredAxis(2));
+        long solved = untracked.fingerprint();
+        assertEquals(solved, tracked.fingerprint());
+        assertTrue(tracked.isSolved());
+
+        int trials = 1000;
+        int[] sides = new int[trials];
+        int[] layers = new int[trials];
+        Random r = new Random();
+        for (int i = 0; i < trials; i++) {
+            sides[i] = r.nextInt(6);
+            layers[i] = r.nextInt(size);
+            untracked.rotate(sides[i], layers[i]);
+            tracked.rotate(sides[i], layers[i]);
+            otherLayout.rotate(sides[i], layers[i]);
+        }
+        assertEquals(untracked.fingerprint(), tracked.fingerprint());
+        assertEquals(untracked.fingerprint(), otherLayout.fingerprint());
+        assertTrue(untracked.contentEquals(tracked));
+        assertTrue(tracked.contentEquals(otherLayout));
+        assertTrue(tracked.contentEquals(otherLayout, true));
+        assertFalse(tracked.isSolved());
+        assertFalse(untracked.isSolved());
+
+        tracked.rotate(0, 0);
+        assertFalse(tracked.contentEquals(untracked));
+        tracked.rotate(5, size - 1);
+
+        // undoing the rotations solves the cube again
+        for (int i = trials - 1; i >= 0; i--) {
+            tracked.rotate(Cube.opposite(sides[i]), size - 1 - layers[i]);
+        }
+        assertTrue(tracked.isSolved());
+        assertTrue(tracked.isSolved(true));
+        assertEquals(solved, tracked.fingerprint());
+    }
+
+    // rotates all layers of one axis of a cube tracking its fingerprint
+    // from many threads at once, checks if the fingerprint equals the one
+    // of a cube rotated the same way by one thread
+    @Test
+    public void testConcurrentFingerprint() throws InterruptedException {
+        int size = 20;
+        Cube tracked = new Cube(size, (x, y) -> {}, (x, y) -> {}, () -> {}, () -> {},
+                new CubeOptions().trackFingerprint());
+        Cube untracked = new Cube(size, (x, y) -> {}, (x, y) -> {}, () -> {}, () -> {});
+        tracked.rotate(2, 3);
+        untracked.rotate(2, 3);
+
+        // rotations of different layers of one axis change the same sides
+        // at once, the order of rotations of one layer does not matter
+        Thread[] threads = new Thread[size];
+        for (int i = 0; i < size; i++) {
+            int layer = i;
+            threads[i] = new Thread(() -> {
+                try {
+                    for (int j = 0; j < 50; j++) {
+                        tracked.rotate(1, layer);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (int layer = 0; layer < size; layer++) {
+            for (int j = 0; j < 50; j++) {
+                untracked.rotate(1, layer);
+            }
+        }
+        assertEquals(untracked.fingerprint(), tracked.fingerprint());
+        assertTrue(untracked.contentEquals(tracked));
+    }
+
+    // checks if getFace(), getSquare() and getLayerRing() of a rotated
+    // cube (laid out by columns) read the same squares show() does
+    @Test
+    public void testRegionReads() throws InterruptedException {
+        int size = 5;
+        Cube cube = new Cube(size, (x, y) -> {}, (x, y) -> {}, () -> {}, () -> {},
+                new CubeOptions().preferredAxis(1));
+        Random r = new Random();
+        for (int i = 0; i < 200; i++) {
+            cube.rotate(r.nextInt(6), r.nextInt(size));
+        }
+
+        String shown = cube.show();
+        for (int side = 0; side < 6; side++) {
+            String face = shown.substring(side * size * size, (side + 1) * size * size);
+            assertEquals(face, cube.getFace(side));
+            for (int row = 0; row < size; row++) {
+                for (int column = 0; column < size; column++) {
+                    assertEquals(face.charAt(row * size + column) - '0', cube.getSquare(side, row, column));
+                }
+            }
+        }
+
+        // rotate(2, 1) moves row 3 of side 0, column 3 of side 1,
+        // row 1 of side 5 and column 1 of side 3
+        StringBuilder ring = new StringBuilder();
+        for (int i = 0; i < size; i++) {
+            ring.append(shown.charAt(3 * size + i));
+        }
+        for (int i = 0; i < size; i++) {
+            ring.append(shown.charAt(size * size + i * size + 3));
+        }
+        for (int i = 0; i < size; i++) {
+            ring.append(shown.charAt(5 * size * size + size + i));
+        }
+        for (int i = 0; i < size; i++) {
+            ring.append(shown.charAt(3 * size * size + i * size + 1));
+        }
+        assertEquals(ring.toString(), cube.getLayerRing(2, 1));
+        assertEquals(ring.toString(), cube.getLayerRing(4, 3));
+    }
+
+    // holds a rotation in beforeRotation, checks if squares it does not
+    // move can be read meanwhile and a moved one is read after it
+    @Test
+    public void testRegionReadsDuringRotation() throws InterruptedException {
+        int size = 5;
+        CountDownLatch rotating = new CountDownLatch(1);
+        CountDownLatch read = new CountDownLatch(1);
+        Cube cube = new Cube(size, (x, y) -> {
+            rotating.countDown();
+            try {
+                read.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, (x, y) -> {}, () -> {}, () -> {});
+
+        Thread rotation = new Thread(() -> {
+            try {
+                cube.rotate(0, 2);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        rotation.start();
+        rotating.await();
+
+        // none of these squares is moved by the rotation held in its hook
+        assertEquals("0".repeat(size * size), cube.getFace(0));
+        assertEquals("5".repeat(size * size), cube.getFace(5));
+        assertEquals(1, cube.getSquare(1, 1, 4));
+        assertEquals(3, cube.getSquare(3, 0, 0));
+        assertEquals("1111122222333334444", cube.getLayerRing(0, 3).substring(0, 19));
+        read.countDown();
+        rotation.join();
+
+        assertEquals(2, cube.getSquare(1, 2, 0));
+    }
+
+    // checks if region reads refuse squares, sides and layers not
+    // on the cube before waiting and are not counted as admissions
+    @Test
+    public void testRegionReadArguments() throws InterruptedException {
+        int size = 4;
+        CountDownLatch rotating = new CountDownLatch(1);
+        CountDownLatch released = new CountDownLatch(1);
+        Cube cube = new Cube(size, (x, y) -> {
+            rotating.countDown();
+            try {
+                released.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, (x, y) -> {}, () -> {}, () -> {}, new CubeOptions().collectMetrics());
+
+        // the rotation holds axis 1, reads of bad arguments do not wait for it
+        Thread rotation = new Thread(() -> {
+            try {
+                cube.rotate(3, 0);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        rotation.start();
+        rotating.await();
+        assertThrows(IllegalArgumentException.class, () -> cube.getSquare(0, size, 0));
+        assertThrows(IllegalArgumentException.class, () -> cube.getSquare(0, 0, -1));
+        assertThrows(IllegalArgumentException.class, () -> cube.getSquare(6, 0, 0));
+        assertThrows(IllegalArgumentException.class, () -> cube.getFace(-1));
+        assertThrows(IllegalArgumentException.class, () -> cube.getLayerRing(1, size));
+        released.countDown();
+        rotation.join();
+
+        cube.getSquare(2, 1, 1);
+        cube.getFace(5);
+        cube.getLayerRing(0, 2);
+        CubeMetrics metrics = cube.getMetrics();
+        assertEquals(1, metrics.getAdmissions(0) + metrics.getAdmissions(1) + metrics.getAdmissions(2));
+    }
+
+    // counts the events it gets: versions of rotations, rotations of each
+    // layer (numbered looking from the axis), shows and ends of batches
+    private static class CountingListener implements CubeEventListener {
+        private final int size;
+        private final List<Long> versions = new ArrayList<>();
+        private final AtomicInteger[] rotatedLayers;
+        private int shown;
+        private int batches;
+
+        private CountingListener(int size) {
+            this.size = size;
+            rotatedLayers = new AtomicInteger[size];
+            for (int layer = 0; layer < size; layer++) {
+                rotatedLayers[layer] = new AtomicInteger();
+            }
+        }
+
+        @Override
+        public void rotated(int side, int layer, long version) {
+            versions.add(version);
+            rotatedLayers[side < 3 ? layer : size - 1 - layer].incrementAndGet();
+        }
+
+        @Override
+        public void shown(long version) {
+            shown++;
+        }
+
+        @Override
+        public void endOfBatch() {
+            batches++;
+        }
+    }
+
+    // rotates from more threads a cube with two listeners and a small
+    // event buffer, checks if both get every rotation once, the show
+    // and some batches
+    @Test
+    public void testEvents() throws InterruptedException, IOException {
+        int size = 8;
+        int threads = 4;
+        int rotations = 500;
+        CountingListener first = new CountingListener(size);
+        CountingListener second = new CountingListener(size);
+        Cube cube = new Cube(size, (x, y) -> {}, (x, y) -> {}, () -> {}, () -> {},
+                new CubeOptions().events(8, BackPressure.BLOCK, first, second));
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int layer = t;
+            tasks.add(() -> {
+                for (int i = 0; i < rotations; i++) {
+                    cube.rotate(i % 2 == 0 ? 1 : 3, i % 2 == 0 ? layer : size - 1 - layer);
+                }
+                return null;
+            });
+        }
+        executor.invokeAll(tasks);
+        executor.shutdown();
+        cube.show();
+        cube.close();
+
+        // a full buffer makes rotations wait, nothing is lost
+        assertEquals(0, cube.getDroppedEvents());
+        for (CountingListener listener : new CountingListener[] {first, second}) {
+            assertEquals(threads * rotations, listener.versions.size());
+            assertEquals(threads * rotations, new HashSet<>(listener.versions).size());
+            for (int layer = 0; layer < threads; layer++) {
+                assertEquals(rotations, listener.rotatedLayers[layer].get());
+            }
+            assertEquals(1, listener.shown);
+            assertTrue(listener.batches > 0);
+        }
+    }
+
+    // holds the only listener of a cube dropping events when its buffer
+    // is full, checks if rotations go on and every event is either
+    // received or counted as dropped
+    @Test
+    public void testDroppedEvents() throws InterruptedException, IOException {
+        CountDownLatch released = new CountDownLatch(1);
+        AtomicInteger received = new AtomicInteger();
+        Cube cube = new Cube(3, (x, y) -> {}, (x, y) -> {}, () -> {}, () -> {},
+                new CubeOptions().events(4, BackPressure.DROP, (side, layer, version) -> {
+                    try {
+                        released.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    received.incrementAndGet();
+                }));
+
+        // the listener is stuck, rotations go on without it
+        for (int i = 0; i < 20; i++) {
+            cube.rotate(0, 0);
+        }
+        released.countDown();
+        cube.close();
+        assertEquals(20, received.get() + cube.getDroppedEvents());
+        assertTrue(cube.getDroppedEvents() >= 15);
+    }
+
+    // lets the listener run out of events, checks if its thread parks
+    // without a timeout and if a later rotation still reaches it
+    @Test
+    public void testIdleListener() throws InterruptedException, IOException {
+        AtomicReference<Thread> listenerThread = new AtomicReference<>();
+        AtomicInteger received = new AtomicInteger();
+        Cube cube = new Cube(3, (x, y) -> {}, (x, y) -> {}, () -> {}, () -> {},
+                new CubeOptions().events(4, BackPressure.BLOCK, (side, layer, version) -> {
+                    listenerThread.set(Thread.currentThread());
+                    received.incrementAndGet();
+                }));
+
+        cube.rotate(0, 0);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while ((listenerThread.get() == null || listenerThread.get().getState() != Thread.State.WAITING)
+                && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(Thread.State.WAITING, listenerThread.get().getState());
+
+        cube.rotate(1, 1);
+        while (received.get() < 2 && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(2, received.get());
+        cube.close();
+    }
+
+    // rotates and shows a flat combining cube from one thread and from
+    // more threads, checks if it equals a plain cube rotated the same way,
+    // if hooks run once per rotation with no rotations overlapping
+    // and if an interrupted thread does not rotate
+    @Test
+    public void testFlatCombining() throws InterruptedException {
+        int size = 4;
+        int threads = 8;
+        int rotations = 2000;
+        AtomicInteger hooks = new AtomicInteger();
+        AtomicInteger rotating = new AtomicInteger();
+        AtomicInteger errors = new AtomicInteger();
+        Cube combined = new Cube(size,
+                (x, y) -> { hooks.incrementAndGet(); if (rotating.incrementAndGet() != 1) errors.incrementAndGet(); },
+                (x, y) -> { hooks.incrementAndGet(); rotating.decrementAndGet(); },
+                () -> { if (rotating.get() != 0) errors.incrementAndGet(); },
+                () -> {},
+                new CubeOptions().flatCombining());
+        Cube plain = new Cube(size, (x, y) -> {}, (x, y) -> {}, () -> {}, () -> {});
+
+        Random r = new Random();
+        for (int i = 0; i < 100; i++) {
+            int side = r.nextInt(6);
+            int layer = r.nextInt(size);
+            combined.rotate(side, layer);
+            plain.rotate(side, layer);
+        }
+        assertEquals(plain.show(), combined.show());
+
+        // every thread rotates its own layers, so the order does not matter
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int side = t % 2 == 0 ? 2 : 4;
+            int layer = t % size;
+            workers[t] = new Thread(() -> {
+                try {
+                    for (int i = 0; i < rotations; i++) {
+                        combined.rotate(side, layer);
+                        if (i % 100 == 0) {
+                            assertEquals(6 * size * size, combined.show().length());
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        for (int t = 0; t < threads; t++) {
+            for (int i = 0; i < rotations; i++) {
+                plain.rotate(t % 2 == 0 ? 2 : 4, t % size);
+            }
+        }
+        assertEquals(plain.show(), combined.show());
+        assertEquals(2 * (100 + threads * rotations), hooks.get());
+        assertEquals(0, errors.get());
+
+        // an interrupted thread does not rotate
+        String before = combined.show();
+        Thread.currentThread().interrupt();
+        boolean interrupted = false;
+        try {
+            combined.rotate(0, 0);
+        } catch (InterruptedException e) {
+            interrupted = true;
+        }
+        assertTrue(interrupted);
+        assertEquals(before, combined.show());
+    }
+
+    // rotates and shows a flat combining cube from more threads, checks
+    // if metrics count every operation with its own group
+    @Test
+    public void testFlatCombiningMetrics() throws InterruptedException {
+        int size = 4;
+        int threads = 6;
+        int rotations = 300;
+        Cube cube = new Cube(size, (x, y) -> {}, (x, y) -> {}, () -> {}, () -> {},
+                new CubeOptions().flatCombining().collectMetrics());
+
+        // thread t rotates side t (two threads an axis), shows every 10th time
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int side = t;
+            workers[t] = new Thread(() -> {
+                try {
+                    for (int i = 0; i < rotations; i++) {
+                        cube.rotate(side, i % size);
+                        if (i % 10 == 0) {
+                            cube.show();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        CubeMetrics metrics = cube.getMetrics();
+        assertEquals(threads * rotations, metrics.getRotations());
+        assertEquals(threads * rotations / 10, metrics.getShows());
+        for (int axis = 0; axis < 3; axis++) {
+            assertEquals(threads / 3 * rotations, metrics.getAdmissions(axis));
+        }
+        assertEquals(threads * rotations / 10, metrics.getAdmissions(CubeMetrics.SHOW));
+    }
+
+    // rotates ranges of layers (also the whole cube) of cubes laid out
+    // in each way and one tracking its fingerprint, checks if they equal
+    // a cube rotating the layers one by one
+    @Test
+    public void testRotateRange() throws InterruptedException {
+        Random r = new Random();
+        for (int size = 1; size <= 6; size++) {
+            for (CubeOptions options : new CubeOptions[] {new CubeOptions(),
+                    new CubeOptions().preferredAxis(1), new CubeOptions().preferredAxis(2),
+                    new CubeOptions().trackFingerprint()}) {
+                Cube ranges = new Cube(size, (x, y) -> {}, (x, y) -> {}, () -> {}, () -> {}, options);
+                Cube layers = new Cube(size, (x, y) -> {}, (x, y) -> {}, () -> {}, () -> {});
+                for (int i = 0; i < 300; i++) {
+                    int side = r.nextInt(6);
+                    int fromLayer = r.nextInt(size);
+                    int toLayer = r.nextInt(4) == 0 ? size - 1 : fromLayer + r.nextInt(size - fromLayer);
+                    if (r.nextInt(4) == 0) {
+                        fromLayer = 0;
+                        toLayer = size - 1;
+                    }
+                    ranges.rotateRange(side, fromLayer, toLayer);
+                    for (int layer = fromLayer; layer <= toLayer; layer++) {
+                        layers.rotate(side, layer);
+                    }
+                    assertEquals(layers.show(), ranges.show());
+                }
+                assertEquals(layers.fingerprint(), ranges.fingerprint());
+            }
+        }
+    }
+
+    // turns the whole cube, checks the hooks, the show delta covering
+    // every side and that four turns give the cube back
+    @Test
+    public void testWholeCubeRotation() throws InterruptedException {
+        int size = 4;
+        List<Integer> rotated = new ArrayList<>();
+        Cube cube = new Cube(size, (side, layer) -> rotated.add(layer), (x, y) -> {}, () -> {}, () -> {});
+        Cube expected = new Cube(size, (x, y) -> {}, (x, y) -> {}, () -> {}, () -> {});
+        cube.rotate(1, 1);
+        expected.rotate(1, 1);
+        ShowDelta before = cube.showDelta(-1);
+
+        cube.rotateRange(3, 0, size - 1);
+        for (int layer = 0; layer < size; layer++) {
+            expected.rotate(3, layer);
+        }
+        assertEquals(expected.show(), cube.show());
+        assertEquals(List.of(1, 0, 1, 2, 3), rotated);
+
+        // every side changed, the delta has all of them
+        ShowDelta delta = cube.showDelta(before.getVersion());
+        assertEquals(before.getVersion() + size, delta.getVersion());
+        String start = before.applyTo("?".repeat(6 * size * size));
+        assertEquals(expected.show(), delta.applyTo(start));
+
+        // 4 whole turns give the cube back
+        String shown = cube.show();
+        for (int i = 0; i < 4; i++) {
+            cube.rotateRange(2, 0, size - 1);
+        }
+        assertEquals(shown, cube.show());
+        assertEquals(shown.substring(0, size * size), cube.getFace(0));
+    }
+
+    // rotates ranges of layers of a durable cube (also whole cube turns),
+    // checks if the recovered cube replays them layer by layer
+    @Test
+    public void testRangeRecovery() throws InterruptedException, IOException {
+        int size = 7;
+        Path directory = Files.createTempDirectory("cube");
+
+        Cube cube = new Cube(size, (x, y) -> {}, (x, y) -> {}, () -> {}, () -> {},
+                new CubeOptions().durability(directory, SyncPolicy.COMMIT));
+        cube.rotate(0, 3);
+        cube.rotateRange(4, 2, 5);
+        cube.checkpoint();
+        cube.rotateRange(1, 0, size - 1);
+        cube.rotateRange(5, 0, 3);
+        String expected = cube.show();
+        cube.close();
+
+        Cube recovered = new Cube(size, (x, y) -> {}, (x, y) -> {}, () -> {}, () -> {},
+                new CubeOptions().durability(directory, SyncPolicy.NONE));
+        assertEquals(expected, recovered.show());
+        recovered.close();
+        deleteDirectory(directory);
+    }
+
+    // metrics count a rotation for every layer of a range
+    @Test
+    public void testRangeMetrics() throws InterruptedException {
+        int size = 5;
+        Cube cube = new Cube(size, (x, y) -> {}, (x, y) -> {}, () -> {}, () -> {},
+                new CubeOptions().collectMetrics());
+        cube.rotateRange(2, 1, 3);
+        cube.rotateRange(0, 0, size - 1);
+        cube.rotate(1, 0);
+
+        assertEquals(3 + size + 1, cube.getMetrics().getRotations());
+    }
 }
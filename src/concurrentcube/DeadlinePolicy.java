@@ -0,0 +1,38 @@
+package concurrentcube;
+
+// lets the running group take its operations while others wait, until
+// an operation of another group has waited for maxWaitNanos;
+// then the cube goes to the group whose operation waits the longest
+public class DeadlinePolicy implements SchedulingPolicy {
+    private final long maxWaitNanos;
+
+    public DeadlinePolicy(long maxWaitNanos) {
+        if (maxWaitNanos < 0) {
+            throw new IllegalArgumentException("wait must not be negative, got " + maxWaitNanos);
+        }
+        this.maxWaitNanos = maxWaitNanos;
+    }
+
+    @Override
+    public int next(int lastGroup, int[] waiting, long[] oldestWait) {
+        int chosen = -1;
+        for (int i = 1; i <= 4; i++) {
+            int group = (lastGroup + i) % 4;
+            if (waiting[group] > 0 && (chosen < 0 || oldestWait[group] - oldestWait[chosen] < 0)) {
+                chosen = group;
+            }
+        }
+        return chosen;
+    }
+
+    @Override
+    public boolean mayJoin(int group, int[] waiting, long[] oldestWait, long turnAdmissions) {
+        long now = System.nanoTime();
+        for (int other = 0; other < 4; other++) {
+            if (other != group && waiting[other] > 0 && now - oldestWait[other] >= maxWaitNanos) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
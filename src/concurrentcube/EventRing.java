@@ -0,0 +1,243 @@
+package concurrentcube;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// passes events of a cube to listeners: events are kept as primitives in
+// preallocated slots of a ring, every listener reads all of them on its
+// own thread and remembers how far it got
+//
+// operations publishing events claim a sequence number with an atomic
+// update, fill its slot (sequence & mask) and mark it with the round
+// of the sequence; a slot is claimed again only after every listener
+// read it, a listener takes all marked slots at once as a batch
+//
+// a listener with nothing to read spins, yields, then parks until
+// an operation publishing an event sees it parked and unparks it
+class EventRing {
+    private static final VarHandle AVAILABLE = MethodHandles.arrayElementVarHandle(int[].class);
+    // how many times waiting threads spin, then yield, before parking
+    private static final int SPINS = 100;
+    private static final int YIELDS = 200;
+    // how long operations waiting for a full ring park at once
+    // (listeners reading it make room soon)
+    private static final long PARK_NANOS = 100_000;
+
+    private final int capacity;
+    private final int mask;
+    private final int shift;
+    private final BackPressure backPressure;
+
+    // the event in each slot: side (-1 for show()), layer and version
+    private final int[] sides;
+    private final int[] layers;
+    private final long[] versions;
+    // round (sequence >>> shift) of the event published in the slot,
+    // accessed only through AVAILABLE
+    private final int[] available;
+
+    // the next sequence to claim
+    private final AtomicLong claimed = new AtomicLong();
+    // the lowest sequence some listener has not read, as last seen;
+    // may lag behind, then it is computed again
+    private volatile long gating;
+    private final Reader[] readers;
+    private final LongAdder dropped = new LongAdder();
+    private volatile boolean closed;
+
+    // reads events for the listener
+    private final class Reader extends Thread {
+        private final CubeEventListener listener;
+        // events before it were read
+        private volatile long sequence;
+        // set while it parks waiting for an event
+        private volatile boolean parked;
+
+        private Reader(CubeEventListener listener, String name) {
+            super(name);
+            this.listener = listener;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            long next = 0;
+            int attempt = 0;
+            while (true) {
+                long end = next;
+                while (end - next < capacity && isAvailable(end)) {
+                    end++;
+                }
+                if (end == next) {
+                    // published events are read before closing
+                    if (closed) {
+                        return;
+                    }
+                    if (attempt < SPINS + YIELDS) {
+                        idle(attempt++);
+                    } else {
+                        await(next);
+                    }
+                    continue;
+                }
+                attempt = 0;
+                for (long event = next; event < end; event++) {
+                    read((int) event & mask);
+                }
+                try {
+                    listener.endOfBatch();
+                } catch (RuntimeException e) {
+                    getUncaughtExceptionHandler().uncaughtException(this, e);
+                }
+                next = end;
+                sequence = next;
+            }
+        }
+
+        // parks till the event is published or the ring is closed;
+        // parked is set before checking them and publish() checks it after
+        // marking the slot, so one of them sees the other
+        private void await(long next) {
+            parked = true;
+            // a volatile read, which the store to parked cannot pass
+            int round = (int) AVAILABLE.getVolatile(available, (int) next & mask);
+            if (round != (int) (next >>> shift) && !closed) {
+                LockSupport.park(this);
+            }
+            parked = false;
+        }
+
+        private void read(int slot) {
+            try {
+                if (sides[slot] < 0) {
+                    listener.shown(versions[slot]);
+                } else {
+                    listener.rotated(sides[slot], layers[slot], versions[slot]);
+                }
+            } catch (RuntimeException e) {
+                getUncaughtExceptionHandler().uncaughtException(this, e);
+            }
+        }
+    }
+
+    EventRing(int capacity, BackPressure backPressure, CubeEventListener[] listeners) {
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.shift = Integer.numberOfTrailingZeros(capacity);
+        this.backPressure = backPressure;
+        sides = new int[capacity];
+        layers = new int[capacity];
+        versions = new long[capacity];
+        available = new int[capacity];
+        for (int slot = 0; slot < capacity; slot++) {
+            available[slot] = -1;
+        }
+        readers = new Reader[listeners.length];
+        for (int i = 0; i < listeners.length; i++) {
+            readers[i] = new Reader(listeners[i], "cube-events-" + i);
+        }
+    }
+
+    void start() {
+        for (Reader reader : readers) {
+            reader.start();
+        }
+    }
+
+    private boolean isAvailable(long sequence) {
+        return (int) AVAILABLE.getAcquire(available, (int) sequence & mask) == (int) (sequence >>> shift);
+    }
+
+    private static void idle(int attempt) {
+        if (attempt < SPINS) {
+            Thread.onSpinWait();
+        } else if (attempt < SPINS + YIELDS) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(PARK_NANOS);
+        }
+    }
+
+    // the lowest sequence some listener has not read
+    private long readSequence() {
+        long lowest = claimed.get();
+        for (Reader reader : readers) {
+            lowest = Math.min(lowest, reader.sequence);
+        }
+        gating = lowest;
+        return lowest;
+    }
+
+    void publishRotation(int side, int layer, long version) {
+        publish(side, layer, version);
+    }
+
+    void publishShow(long version) {
+        publish(-1, 0, version);
+    }
+
+    private void publish(int side, int layer, long version) {
+        if (closed) {
+            return;
+        }
+        long sequence;
+        if (backPressure == BackPressure.DROP) {
+            do {
+                sequence = claimed.get();
+                if (sequence - capacity >= gating && sequence - capacity >= readSequence()) {
+                    dropped.increment();
+                    return;
+                }
+            } while (!claimed.compareAndSet(sequence, sequence + 1));
+        } else {
+            sequence = claimed.getAndIncrement();
+            int attempt = 0;
+            while (sequence - capacity >= gating && sequence - capacity >= readSequence()) {
+                // nobody reads after closing
+                if (closed) {
+                    return;
+                }
+                idle(attempt++);
+            }
+        }
+
+        int slot = (int) sequence & mask;
+        sides[slot] = side;
+        layers[slot] = layer;
+        versions[slot] = version;
+        AVAILABLE.setVolatile(available, slot, (int) (sequence >>> shift));
+        for (Reader reader : readers) {
+            if (reader.parked) {
+                LockSupport.unpark(reader);
+            }
+        }
+    }
+
+    long dropped() {
+        return dropped.sum();
+    }
+
+    // lets the listeners read the published events, then stops them
+    void close() {
+        closed = true;
+        for (Reader reader : readers) {
+            LockSupport.unpark(reader);
+        }
+        boolean interrupted = false;
+        for (Reader reader : readers) {
+            while (reader.isAlive()) {
+                try {
+                    reader.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package concurrentcube;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+// Zobrist-style hash of the colors of a cube's squares: the xor of keys
+// of (side, row, column, color) of every square; keys are computed from
+// the square's position with splitmix64 and rotated by the color, so
+// nothing is kept per square
+//
+// rotations change it by xoring out the lines they move and xoring them
+// back in afterwards; turning a side moves all its squares, so the hash
+// of every side is kept for its 4 orientations (hash j is the side's
+// hash after j more right turns) and turning only picks another one
+class Fingerprint {
+    private static final long SEED = 0x5DEECE66DL;
+    private static final VarHandle HASH = MethodHandles.arrayElementVarHandle(long[].class);
+
+    private final int size;
+    // hashes[side][(turns[side] + j) & 3] is hash j of the side,
+    // updated only through HASH
+    private final long[][] hashes = new long[6][4];
+    // right turns of each side minus its left turns
+    private final int[] turns = new int[6];
+    // hash of the side with all squares of color 0
+    private final long[] plainSide = new long[6];
+
+    // starts with the hash of no squares, the cube xors its squares in
+    Fingerprint(int size) {
+        this.size = size;
+        for (int side = 0; side < 6; side++) {
+            long plain = 0;
+            for (int row = 0; row < size; row++) {
+                for (int column = 0; column < size; column++) {
+                    plain ^= positionKey(size, side, row, column);
+                }
+            }
+            plainSide[side] = plain;
+        }
+    }
+
+    private static long positionKey(int size, int side, int row, int column) {
+        long z = SEED + (((long) side * size + row) * size + column) * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    static long key(int size, int side, int row, int column, int color) {
+        return Long.rotateLeft(positionKey(size, side, row, column), 9 * color);
+    }
+
+    // hash of the side with all squares of the color
+    // (the same in every orientation)
+    long solvedSide(int side, int color) {
+        return Long.rotateLeft(plainSide[side], 9 * color);
+    }
+
+    // xors keys of the square of the color at (row, column) of the side
+    // into changes of its hashes: hash j has the square at the place
+    // right turning the side j times moves it to
+    void addKeys(int side, int row, int column, int color, long[] changes) {
+        int last = size - 1;
+        changes[0] ^= key(size, side, row, column, color);
+        changes[1] ^= key(size, side, column, last - row, color);
+        changes[2] ^= key(size, side, last - row, last - column, color);
+        changes[3] ^= key(size, side, last - column, row, color);
+    }
+
+    // xors hashes j of the side by the given ones
+    void xor(int side, long[] changes) {
+        for (int j = 0; j < 4; j++) {
+            HASH.getAndBitwiseXor(hashes[side], (turns[side] + j) & 3, changes[j]);
+        }
+    }
+
+    void rightTurn(int side) {
+        turns[side]++;
+    }
+
+    void leftTurn(int side) {
+        turns[side]--;
+    }
+
+    // hash of the side as it is
+    long side(int side) {
+        return (long) HASH.getVolatile(hashes[side], turns[side] & 3);
+    }
+
+    long value() {
+        long value = 0;
+        for (int side = 0; side < 6; side++) {
+            value ^= side(side);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,207 @@
+package concurrentcube;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+// executes rotate() and show() by flat combining: a thread puts its
+// operation into its own slot, and whichever thread becomes the combiner
+// lets itself into the whole cube once and executes all pending operations
+// of all slots in a few passes; the others spin (then yield) till their
+// slot is done, nobody parks on a semaphore
+//
+// slots are linked in a list which threads only prepend to, the combiner
+// unlinks slots of threads that have died
+//
+// metrics count every executed operation as let in with its own group
+// (an axis or show), waiting since its slot was published
+class FlatCombiner {
+    private static final int EMPTY = 0;
+    private static final int PENDING = 1;
+    private static final int TAKEN = 2;
+    private static final int DONE = 3;
+
+    // how many times the combiner goes through slots while it finds operations
+    private static final int PASSES = 4;
+    private static final int SPINS = 256;
+
+    private static final VarHandle STATE;
+
+    static {
+        try {
+            STATE = MethodHandles.lookup().findVarHandle(Slot.class, "state", int.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // the operation of a thread, its fields are written by the thread
+    // before it publishes the slot (PENDING) and by the combiner before
+    // it marks it DONE
+    private static class Slot {
+        private final Thread owner;
+        private volatile int state;
+        // the scheduler's group of the operation: an axis of a rotation or show
+        private int group;
+        private long publishedAt;
+        private int side;
+        private int layer;
+        private Snapshot snapshot;
+        private Throwable failure;
+        // never changed for the head, changed only by the combiner otherwise
+        private volatile Slot next;
+
+        private Slot(Thread owner) {
+            this.owner = owner;
+        }
+    }
+
+    private final Scheduler scheduler;
+    private final int size;
+    private final PhaseScheduler.Rotation rotation;
+    private final Supplier<Snapshot> showing;
+    // null unless metrics are collected
+    private final Metrics metrics;
+    // group of the operation executed last, written only by the combiner
+    private int lastGroup = -1;
+
+    private final AtomicReference<Slot> slots = new AtomicReference<>();
+    private final ThreadLocal<Slot> threadSlot = ThreadLocal.withInitial(this::addSlot);
+    private final AtomicBoolean combining = new AtomicBoolean();
+
+    FlatCombiner(Scheduler scheduler, int size, PhaseScheduler.Rotation rotation,
+                 Supplier<Snapshot> showing, Metrics metrics) {
+        this.scheduler = scheduler;
+        this.size = size;
+        this.rotation = rotation;
+        this.showing = showing;
+        this.metrics = metrics;
+    }
+
+    private Slot addSlot() {
+        Slot slot = new Slot(Thread.currentThread());
+        Slot head;
+        do {
+            head = slots.get();
+            slot.next = head;
+        } while (!slots.compareAndSet(head, slot));
+        return slot;
+    }
+
+    // waits till the rotation (on the axis) is executed by some combiner
+    void rotate(int side, int layer, int axis) throws InterruptedException {
+        Slot slot = threadSlot.get();
+        slot.group = axis;
+        slot.side = side;
+        slot.layer = layer;
+        execute(slot);
+    }
+
+    // waits till some combiner takes the state of the cube
+    Snapshot snapshot() throws InterruptedException {
+        Slot slot = threadSlot.get();
+        slot.group = Scheduler.SHOW;
+        execute(slot);
+        Snapshot snapshot = slot.snapshot;
+        slot.snapshot = null;
+        return snapshot;
+    }
+
+    private void execute(Slot slot) throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        slot.failure = null;
+        if (metrics != null) {
+            slot.publishedAt = System.nanoTime();
+        }
+        slot.state = PENDING;
+
+        int attempt = 0;
+        while (slot.state != DONE) {
+            if (!combining.get() && combining.compareAndSet(false, true)) {
+                try {
+                    combine();
+                } catch (InterruptedException e) {
+                    // the operation is executed later unless it is taken back
+                    if (STATE.compareAndSet(slot, PENDING, EMPTY)) {
+                        throw e;
+                    }
+                    Thread.currentThread().interrupt();
+                } finally {
+                    combining.set(false);
+                }
+                attempt = 0;
+            } else if (Thread.currentThread().isInterrupted() && STATE.compareAndSet(slot, PENDING, EMPTY)) {
+                Thread.interrupted();
+                throw new InterruptedException();
+            } else if (attempt++ < SPINS) {
+                Thread.onSpinWait();
+            } else {
+                Thread.yield();
+            }
+        }
+        slot.state = EMPTY;
+
+        Throwable failure = slot.failure;
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+    }
+
+    // executes pending operations holding the whole cube, must be called
+    // by the thread which set combining
+    private void combine() throws InterruptedException {
+        scheduler.enterUncounted(0, 0, size - 1);
+        try {
+            for (int pass = 0; pass < PASSES; pass++) {
+                if (!combinePass()) {
+                    break;
+                }
+            }
+        } finally {
+            scheduler.exit(0, 0, size - 1);
+        }
+    }
+
+    // returns if any operation was executed
+    private boolean combinePass() {
+        boolean executed = false;
+        Slot previous = null;
+        for (Slot slot = slots.get(); slot != null; slot = slot.next) {
+            if (slot.state == PENDING && STATE.compareAndSet(slot, PENDING, TAKEN)) {
+                executeTaken(slot);
+                executed = true;
+            } else if (previous != null && slot.state == EMPTY && !slot.owner.isAlive()) {
+                previous.next = slot.next;
+                continue;
+            }
+            previous = slot;
+        }
+        return executed;
+    }
+
+    private void executeTaken(Slot slot) {
+        if (metrics != null) {
+            metrics.admitted(slot.group, System.nanoTime() - slot.publishedAt);
+            if (slot.group != lastGroup && lastGroup != -1) {
+                metrics.handedOff(slot.group);
+            }
+            lastGroup = slot.group;
+        }
+        try {
+            if (slot.group == Scheduler.SHOW) {
+                slot.snapshot = showing.get();
+            } else {
+                rotation.execute(slot.side, slot.layer);
+            }
+        } catch (RuntimeException | Error e) {
+            slot.failure = e;
+        }
+        slot.state = DONE;
+    }
+}
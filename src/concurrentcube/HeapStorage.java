@@ -0,0 +1,48 @@
+package concurrentcube;
+
+import java.util.Arrays;
+
+// keeps every side in one byte array on the heap
+// (colors are 0..5, so one byte per square is enough)
+class HeapStorage implements Storage {
+    private final byte[][] sides;
+
+    HeapStorage(int size) {
+        if ((long) size * size > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("side of size " + size
+                    + " does not fit in a heap array, use off-heap storage");
+        }
+        sides = new byte[6][size * size];
+        for (int side = 0; side < 6; side++) {
+            Arrays.fill(sides[side], (byte) side);
+        }
+    }
+
+    @Override
+    public int get(int side, long index) {
+        return sides[side][(int) index];
+    }
+
+    @Override
+    public void set(int side, long index, int color) {
+        sides[side][(int) index] = (byte) color;
+    }
+
+    @Override
+    public void read(int side, long index, byte[] target, int offset, int length) {
+        System.arraycopy(sides[side], (int) index, target, offset, length);
+    }
+
+    @Override
+    public void write(int side, long index, byte[] source, int offset, int length) {
+        System.arraycopy(source, offset, sides[side], (int) index, length);
+    }
+
+    @Override
+    public void permute(int[] from) {
+        byte[][] old = sides.clone();
+        for (int side = 0; side < 6; side++) {
+            sides[side] = old[from[side]];
+        }
+    }
+}
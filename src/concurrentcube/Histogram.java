@@ -0,0 +1,90 @@
+package concurrentcube;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+// counts recorded times (in nanoseconds) in buckets: below 16 one bucket
+// per value, above 8 buckets per power of two, so a bucket is within
+// 12.5% of the values in it; recording only adds to the bucket's LongAdder
+class Histogram {
+    private static final int LINEAR = 16;
+    private static final int SUB_BUCKETS = 8;
+    static final int BUCKETS = LINEAR + (63 - 4) * SUB_BUCKETS;
+
+    private final LongAdder[] counts = new LongAdder[BUCKETS];
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    Histogram() {
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            counts[bucket] = new LongAdder();
+        }
+    }
+
+    private static int bucket(long value) {
+        if (value < LINEAR) {
+            return (int) Math.max(value, 0);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - 3)) & (SUB_BUCKETS - 1);
+        return LINEAR + (exponent - 4) * SUB_BUCKETS + sub;
+    }
+
+    // the lowest value counted in the bucket
+    private static long lowest(int bucket) {
+        if (bucket < LINEAR) {
+            return bucket;
+        }
+        int exponent = 4 + (bucket - LINEAR) / SUB_BUCKETS;
+        int sub = (bucket - LINEAR) % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + sub) << (exponent - 3);
+    }
+
+    void record(long nanos) {
+        counts[bucket(nanos)].increment();
+        max.accumulate(nanos);
+    }
+
+    // records the time count times
+    void record(long nanos, int count) {
+        counts[bucket(nanos)].add(count);
+        max.accumulate(nanos);
+    }
+
+    long[] counts() {
+        long[] result = new long[BUCKETS];
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            result[bucket] = counts[bucket].sum();
+        }
+        return result;
+    }
+
+    long max() {
+        return max.get();
+    }
+
+    static long total(long[] counts) {
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        return total;
+    }
+
+    // the value below which the percentile (0-100) of counted values are,
+    // rounded down to its bucket, 0 if nothing was counted
+    static long percentile(long[] counts, double percentile) {
+        long total = total(counts);
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += counts[bucket];
+            if (seen >= rank) {
+                return lowest(bucket);
+            }
+        }
+        return lowest(BUCKETS - 1);
+    }
+}
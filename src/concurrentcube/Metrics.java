@@ -0,0 +1,59 @@
+package concurrentcube;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// collects metrics of a cube (see CubeOptions.collectMetrics()),
+// Scheduler and Cube report to it only if it was asked for
+class Metrics {
+    // time from asking for admission to being let in, per group
+    private final Histogram[] waits = new Histogram[4];
+    // how many times each group took the cube over from another one
+    private final LongAdder[] handoffs = new LongAdder[4];
+    private final Histogram rotationTimes = new Histogram();
+    // states of the cube taken for the user (show(), showDelta() and their
+    // variants), other readers are let in with shows without counting
+    private final LongAdder shows = new LongAdder();
+    private final long startNanos = System.nanoTime();
+
+    Metrics() {
+        for (int group = 0; group < 4; group++) {
+            waits[group] = new Histogram();
+            handoffs[group] = new LongAdder();
+        }
+    }
+
+    void admitted(int group, long waitNanos) {
+        waits[group].record(waitNanos);
+    }
+
+    void handedOff(int group) {
+        handoffs[group].increment();
+    }
+
+    void rotated(long nanos) {
+        rotationTimes.record(nanos);
+    }
+
+    // rotations done together (rotateRange()) take equal parts of the time
+    void rotated(long nanos, int rotations) {
+        rotationTimes.record(nanos / rotations, rotations);
+    }
+
+    void showed() {
+        shows.increment();
+    }
+
+    CubeMetrics snapshot(int[] queueDepths) {
+        long[][] waitCounts = new long[4][];
+        long[] maxWaits = new long[4];
+        long[] handoffCounts = new long[4];
+        for (int group = 0; group < 4; group++) {
+            waitCounts[group] = waits[group].counts();
+            maxWaits[group] = waits[group].max();
+            handoffCounts[group] = handoffs[group].sum();
+        }
+        return new CubeMetrics(System.nanoTime() - startNanos, waitCounts, maxWaits,
+                queueDepths, handoffCounts, rotationTimes.counts(), rotationTimes.max(),
+                shows.sum());
+    }
+}
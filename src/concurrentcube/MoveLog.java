@@ -0,0 +1,248 @@
+package concurrentcube;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+// write-ahead log of rotations kept in memory-mapped segment files
+// moves-<number>.log of SEGMENT_BYTES each;
+// a record is the rotation's version (written last, 0 marks an empty
+// record), its layer, side and a check of the three, so records torn
+// by a crash are skipped; rotations holding the same layers are
+// appended one after another, so the order of records in the segments
+// is an order the rotations could have been executed in
+class MoveLog implements AutoCloseable {
+    static final int RECORD = 16;
+    static final long SEGMENT_BYTES = RECORD << 20;
+    // bytes of a file mapped at once when reading
+    private static final long WINDOW = RECORD << 22;
+    private static final String PREFIX = "moves-";
+    private static final String SUFFIX = ".log";
+
+    // executes a rotation read from the log
+    interface Replay {
+        void rotate(long version, int side, int layer);
+    }
+
+    private static class Segment {
+        private final long number;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        private final AtomicLong reserved = new AtomicLong();
+
+        private Segment(long number, FileChannel channel, MappedByteBuffer buffer) {
+            this.number = number;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+    }
+
+    private final Path directory;
+    private final SyncPolicy syncPolicy;
+    // the segment new records go to
+    private volatile Segment current;
+    // segments not deleted yet, guarded by this
+    private final List<Segment> open = new ArrayList<>();
+
+    // numbers of records written and of those surely on disk
+    private final AtomicLong written = new AtomicLong();
+    private final Object forceLock = new Object();
+    // guarded by forceLock
+    private long forced;
+
+    // starts a new segment after the ones in the directory
+    MoveLog(Path directory, SyncPolicy syncPolicy) throws IOException {
+        this.directory = directory;
+        this.syncPolicy = syncPolicy;
+        List<Long> numbers = segmentNumbers(directory);
+        startSegment(numbers.isEmpty() ? 0 : numbers.get(numbers.size() - 1) + 1);
+    }
+
+    private static long check(long version, int side, int layer) {
+        long mixed = (version * 0x9E3779B97F4A7C15L) ^ (side * 0xBF58476D1CE4E5B9L) ^ layer;
+        mixed ^= mixed >>> 31;
+        return mixed & 0xFFFF;
+    }
+
+    private static Path segmentPath(Path directory, long number) {
+        return directory.resolve(String.format("%s%020d%s", PREFIX, number, SUFFIX));
+    }
+
+    static List<Long> segmentNumbers(Path directory) throws IOException {
+        List<Long> numbers = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                numbers.add(Long.parseLong(
+                        name.substring(PREFIX.length(), name.length() - SUFFIX.length())));
+            }
+        }
+        numbers.sort(null);
+        return numbers;
+    }
+
+    // replays records of every segment in the directory newer than
+    // sinceVersion, returns the newest version found
+    static long replay(Path directory, long sinceVersion, Replay replay) throws IOException {
+        long[] newest = {sinceVersion};
+        for (long number : segmentNumbers(directory)) {
+            read(segmentPath(directory, number), (version, side, layer) -> {
+                if (version > sinceVersion) {
+                    replay.rotate(version, side, layer);
+                    newest[0] = Math.max(newest[0], version);
+                }
+            });
+        }
+        return newest[0];
+    }
+
+    // replays every valid record of the file in order,
+    // mapping WINDOW bytes of it at a time
+    static void read(Path file, Replay replay) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long length = channel.size() - channel.size() % RECORD;
+            for (long start = 0; start < length; start += WINDOW) {
+                ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                        Math.min(WINDOW, length - start));
+                for (int position = 0; position < buffer.limit(); position += RECORD) {
+                    long version = buffer.getLong(position);
+                    int layer = buffer.getInt(position + 8);
+                    int side = buffer.getShort(position + 12);
+                    long check = buffer.getShort(position + 14) & 0xFFFF;
+                    if (version != 0 && check == check(version, side, layer)
+                            && side >= 0 && side <= 5) {
+                        replay.rotate(version, side, layer);
+                    }
+                }
+            }
+        }
+    }
+
+    // writes the rotations to the file as records with versions 1, 2, ...
+    static void write(Path file, int[] sides, int[] layers) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(RECORD << 12);
+            for (int i = 0; i < sides.length; i++) {
+                long version = i + 1;
+                buffer.putLong(version).putInt(layers[i]).putShort((short) sides[i])
+                        .putShort((short) check(version, sides[i], layers[i]));
+                if (!buffer.hasRemaining() || i == sides.length - 1) {
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                    buffer.clear();
+                }
+            }
+        }
+    }
+
+    private synchronized void startSegment(long number) throws IOException {
+        FileChannel channel = FileChannel.open(segmentPath(directory, number),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        Segment segment = new Segment(number, channel,
+                channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_BYTES));
+        open.add(segment);
+        current = segment;
+    }
+
+    // moves new records to a new segment, returns its number
+    synchronized long nextSegment() throws IOException {
+        startSegment(current.number + 1);
+        return current.number;
+    }
+
+    private synchronized void nextSegment(Segment full) throws IOException {
+        if (current == full) {
+            startSegment(full.number + 1);
+        }
+    }
+
+    // appends the rotation, returns its ticket for commit()
+    long append(long version, int side, int layer) throws IOException {
+        while (true) {
+            Segment segment = current;
+            long position = segment.reserved.getAndAdd(RECORD);
+            if (position + RECORD <= SEGMENT_BYTES) {
+                MappedByteBuffer buffer = segment.buffer;
+                int at = (int) position;
+                buffer.putInt(at + 8, layer);
+                buffer.putShort(at + 12, (short) side);
+                buffer.putShort(at + 14, (short) check(version, side, layer));
+                buffer.putLong(at, version);
+                return written.incrementAndGet();
+            }
+            nextSegment(segment);
+        }
+    }
+
+    // with SyncPolicy.COMMIT waits till the record with the ticket is on
+    // disk; the thread forcing the log covers every record written before
+    // it started, so threads waiting meanwhile usually find theirs forced
+    void commit(long ticket) throws IOException {
+        if (syncPolicy != SyncPolicy.COMMIT) {
+            return;
+        }
+        synchronized (forceLock) {
+            if (forced >= ticket) {
+                return;
+            }
+            forceWritten();
+        }
+    }
+
+    // forces every record written so far
+    void force() throws IOException {
+        synchronized (forceLock) {
+            forceWritten();
+        }
+    }
+
+    // must be called holding forceLock
+    private void forceWritten() throws IOException {
+        long target = written.get();
+        Segment[] segments;
+        synchronized (this) {
+            segments = open.toArray(new Segment[0]);
+        }
+        for (Segment segment : segments) {
+            segment.buffer.force();
+        }
+        forced = Math.max(forced, target);
+    }
+
+    // deletes segments before the given one (their rotations are in a checkpoint)
+    synchronized void deleteBefore(long number) throws IOException {
+        for (int i = open.size() - 1; i >= 0; i--) {
+            if (open.get(i).number < number) {
+                open.get(i).channel.close();
+                open.remove(i);
+            }
+        }
+        for (long old : segmentNumbers(directory)) {
+            if (old < number) {
+                Files.deleteIfExists(segmentPath(directory, old));
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        force();
+        synchronized (this) {
+            for (Segment segment : open) {
+                segment.channel.close();
+            }
+            open.clear();
+        }
+    }
+}
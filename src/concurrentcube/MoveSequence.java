@@ -0,0 +1,118 @@
+package concurrentcube;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// sequence of rotations: rotate(sides[i], layers[i]) for consecutive i
+public class MoveSequence {
+    private final int[] sides;
+    private final int[] layers;
+
+    public MoveSequence(int[] sides, int[] layers) {
+        if (sides.length != layers.length) {
+            throw new IllegalArgumentException("got " + sides.length + " sides and "
+                    + layers.length + " layers");
+        }
+        this.sides = sides;
+        this.layers = layers;
+    }
+
+    public int length() {
+        return sides.length;
+    }
+
+    public int[] getSides() {
+        return sides;
+    }
+
+    public int[] getLayers() {
+        return layers;
+    }
+
+    // writes the sequence to the file in the format of the move log,
+    // so that Cube.replay() can apply it
+    public void write(Path file) throws IOException {
+        MoveLog.write(file, sides, layers);
+    }
+
+    // rotations on one axis, kept as the number of quarter turns (1, 2 or 3)
+    // of each layer looking from side axis
+    private static class Run {
+        private final int axis;
+        private final TreeMap<Integer, Integer> turns = new TreeMap<>();
+
+        private Run(int axis) {
+            this.axis = axis;
+        }
+
+        private void add(int layer, int quarterTurns) {
+            int sum = (turns.getOrDefault(layer, 0) + quarterTurns) % 4;
+            if (sum == 0) {
+                turns.remove(layer);
+            } else {
+                turns.put(layer, sum);
+            }
+        }
+    }
+
+    // returns a sequence leaving a cube of the given size in the same state,
+    // but doing only the net work: rotations on one axis commute, so every
+    // run of them is folded into at most one rotation (two for a half turn)
+    // of each layer, and runs which cancel out are dropped
+    // (which lets the runs around them fold together)
+    public MoveSequence optimize(int size) {
+        ArrayDeque<Run> runs = new ArrayDeque<>();
+        for (int i = 0; i < sides.length; i++) {
+            int side = sides[i];
+            int axis = side < 3 ? side : Cube.opposite(side);
+            int axisLayer = side < 3 ? layers[i] : size - 1 - layers[i];
+            // rotate(oppositeSide(s), size - 1 - l) reverses rotate(s, l)
+            int quarterTurns = side < 3 ? 1 : 3;
+
+            if (runs.isEmpty() || runs.peekLast().axis != axis) {
+                runs.addLast(new Run(axis));
+            }
+            Run run = runs.peekLast();
+            run.add(axisLayer, quarterTurns);
+            if (run.turns.isEmpty()) {
+                runs.removeLast();
+            }
+        }
+
+        List<Integer> optimizedSides = new ArrayList<>();
+        List<Integer> optimizedLayers = new ArrayList<>();
+        for (Run run : runs) {
+            for (Map.Entry<Integer, Integer> entry : run.turns.entrySet()) {
+                int axisLayer = entry.getKey();
+                switch (entry.getValue()) {
+                    case 1:
+                        optimizedSides.add(run.axis);
+                        optimizedLayers.add(axisLayer);
+                        break;
+                    case 2:
+                        optimizedSides.add(run.axis);
+                        optimizedLayers.add(axisLayer);
+                        optimizedSides.add(run.axis);
+                        optimizedLayers.add(axisLayer);
+                        break;
+                    case 3:
+                        optimizedSides.add(Cube.opposite(run.axis));
+                        optimizedLayers.add(size - 1 - axisLayer);
+                }
+            }
+        }
+
+        int[] newSides = new int[optimizedSides.size()];
+        int[] newLayers = new int[optimizedLayers.size()];
+        for (int i = 0; i < newSides.length; i++) {
+            newSides[i] = optimizedSides.get(i);
+            newLayers[i] = optimizedLayers.get(i);
+        }
+        return new MoveSequence(newSides, newLayers);
+    }
+}
@@ -0,0 +1,108 @@
+package concurrentcube;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+// keeps every side outside of the heap: in direct buffers or in a file
+// mapped into memory, so sticker arrays of many gigabytes are not scanned
+// by the garbage collector and the system can page out cold sides;
+// a buffer holds at most 2^30 squares, so a side may be split into chunks
+class OffHeapStorage implements Storage {
+    private static final int CHUNK_SHIFT = 30;
+    private static final long CHUNK_MASK = (1L << CHUNK_SHIFT) - 1;
+    private static final int FILL_BLOCK = 1 << 16;
+
+    // [side][chunk]
+    private final ByteBuffer[][] sides;
+
+    // keeps squares in direct buffers
+    OffHeapStorage(int size) {
+        this(size, null);
+    }
+
+    // keeps squares in the given file (it is created or overwritten),
+    // or in direct buffers if the file is null
+    OffHeapStorage(int size, Path file) {
+        long cells = (long) size * size;
+        int chunks = (int) ((cells + CHUNK_MASK) >>> CHUNK_SHIFT);
+        sides = new ByteBuffer[6][chunks];
+        try (FileChannel channel = file == null ? null : FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (int side = 0; side < 6; side++) {
+                for (int chunk = 0; chunk < chunks; chunk++) {
+                    long from = (long) chunk << CHUNK_SHIFT;
+                    int length = (int) Math.min(cells - from, 1L << CHUNK_SHIFT);
+                    if (channel == null) {
+                        sides[side][chunk] = ByteBuffer.allocateDirect(length);
+                    } else {
+                        sides[side][chunk] = channel.map(FileChannel.MapMode.READ_WRITE,
+                                side * cells + from, length);
+                    }
+                    fill(sides[side][chunk], (byte) side);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void fill(ByteBuffer buffer, byte color) {
+        byte[] block = new byte[Math.min(FILL_BLOCK, buffer.capacity())];
+        Arrays.fill(block, color);
+        for (int position = 0; position < buffer.capacity(); position += block.length) {
+            buffer.put(position, block, 0, Math.min(block.length, buffer.capacity() - position));
+        }
+    }
+
+    @Override
+    public int get(int side, long index) {
+        return sides[side][(int) (index >>> CHUNK_SHIFT)].get((int) (index & CHUNK_MASK));
+    }
+
+    @Override
+    public void set(int side, long index, int color) {
+        sides[side][(int) (index >>> CHUNK_SHIFT)].put((int) (index & CHUNK_MASK), (byte) color);
+    }
+
+    @Override
+    public void read(int side, long index, byte[] target, int offset, int length) {
+        while (length > 0) {
+            int position = (int) (index & CHUNK_MASK);
+            ByteBuffer chunk = sides[side][(int) (index >>> CHUNK_SHIFT)];
+            int part = Math.min(length, chunk.capacity() - position);
+            chunk.get(position, target, offset, part);
+            index += part;
+            offset += part;
+            length -= part;
+        }
+    }
+
+    @Override
+    public void write(int side, long index, byte[] source, int offset, int length) {
+        while (length > 0) {
+            int position = (int) (index & CHUNK_MASK);
+            ByteBuffer chunk = sides[side][(int) (index >>> CHUNK_SHIFT)];
+            int part = Math.min(length, chunk.capacity() - position);
+            chunk.put(position, source, offset, part);
+            index += part;
+            offset += part;
+            length -= part;
+        }
+    }
+
+    // a mapped file keeps squares of a side where they were mapped from,
+    // so afterwards its parts are no longer in order of sides
+    @Override
+    public void permute(int[] from) {
+        ByteBuffer[][] old = sides.clone();
+        for (int side = 0; side < 6; side++) {
+            sides[side] = old[from[side]];
+        }
+    }
+}
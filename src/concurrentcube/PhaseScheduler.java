@@ -0,0 +1,257 @@
+package concurrentcube;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// executes rotations in phases: rotations queue up per axis, a phase takes
+// up to phaseLength of them from one axis, gets the whole axis from
+// Scheduler once, and rotates different layers in parallel on a ForkJoinPool
+// (rotations of one layer keep their order);
+// after a phase the next axis with queued rotations gets its turn,
+// so a short phase is fairer and a long one gives more throughput
+class PhaseScheduler {
+    // executes a rotation which was let in
+    interface Rotation {
+        void execute(int side, int layer);
+    }
+
+    // rotation waiting for its phase
+    static class Move {
+        private static final int QUEUED = 0;
+        private static final int STARTED = 1;
+        private static final int CANCELLED = 2;
+
+        private final int side;
+        private final int layer;
+        private final int axisLayer;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+        private final AtomicInteger state = new AtomicInteger(QUEUED);
+        // thrown by the rotation, reported after its phase
+        private Throwable failure;
+
+        private Move(int side, int layer, int axisLayer) {
+            this.side = side;
+            this.layer = layer;
+            this.axisLayer = axisLayer;
+        }
+
+        CompletableFuture<Void> getDone() {
+            return done;
+        }
+
+        // takes the rotation back unless its phase has already started
+        // executing (a phase taken from the queue may still wait for the axis)
+        boolean cancel() {
+            if (state.compareAndSet(QUEUED, CANCELLED)) {
+                done.cancel(false);
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private final Scheduler scheduler;
+    private final int size;
+    private final ForkJoinPool pool;
+    private final int phaseLength;
+    private final Rotation rotation;
+
+    private final List<ConcurrentLinkedQueue<Move>> queued = new ArrayList<>();
+    // informs if phases are being run, only one phase runs at a time
+    private final AtomicBoolean running = new AtomicBoolean();
+    // axis of the last phase, the next axes are tried after it
+    private int lastAxis = 2;
+
+    private final AtomicLong phases = new AtomicLong();
+    private final AtomicLong rotations = new AtomicLong();
+    private final AtomicLong layers = new AtomicLong();
+    private final AtomicLong longestPhase = new AtomicLong();
+    private final AtomicLong phaseNanos = new AtomicLong();
+
+    PhaseScheduler(Scheduler scheduler, int size, ForkJoinPool pool, int phaseLength, Rotation rotation) {
+        if (phaseLength < 1) {
+            throw new IllegalArgumentException("phase length must be positive, got " + phaseLength);
+        }
+        this.scheduler = scheduler;
+        this.size = size;
+        this.pool = pool;
+        this.phaseLength = phaseLength;
+        this.rotation = rotation;
+        for (int axis = 0; axis < 3; axis++) {
+            queued.add(new ConcurrentLinkedQueue<>());
+        }
+    }
+
+    // queues the rotation, its future completes after its phase executes it
+    Move submit(int side, int layer, int axis, int axisLayer) {
+        Move move = new Move(side, layer, axisLayer);
+        queued.get(axis).add(move);
+        if (running.compareAndSet(false, true)) {
+            nextPhase();
+        }
+        return move;
+    }
+
+    // waits till the rotation is executed, a rotation interrupted
+    // before its phase started it is taken back
+    void await(Move move) throws InterruptedException {
+        try {
+            move.done.get();
+        } catch (InterruptedException e) {
+            if (move.cancel()) {
+                throw e;
+            }
+            move.done.join();
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            rethrow(e);
+        }
+    }
+
+    // like await(), but takes the rotation back and returns false
+    // if its phase has not started it within the timeout
+    boolean await(Move move, long timeoutNanos) throws InterruptedException {
+        try {
+            move.done.get(timeoutNanos, TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            if (move.cancel()) {
+                return false;
+            }
+            await(move);
+        } catch (InterruptedException e) {
+            if (move.cancel()) {
+                throw e;
+            }
+            move.done.join();
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            rethrow(e);
+        }
+        return true;
+    }
+
+    private static void rethrow(ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        }
+        throw (Error) cause;
+    }
+
+    PhaseStatistics getStatistics() {
+        return new PhaseStatistics(phases.get(), rotations.get(), layers.get(),
+                longestPhase.get(), phaseNanos.get());
+    }
+
+    // takes rotations of the next axis with queued ones and asks Scheduler
+    // for the axis, must be called by the thread which set running
+    private void nextPhase() {
+        while (true) {
+            for (int i = 1; i <= 3; i++) {
+                int axis = (lastAxis + i) % 3;
+                List<Move> phase = drain(axis);
+                if (!phase.isEmpty()) {
+                    lastAxis = axis;
+                    scheduler.enterLater(axis, 0, size - 1,
+                            () -> pool.execute(() -> runPhase(axis, phase)));
+                    return;
+                }
+            }
+            running.set(false);
+            // a rotation queued after the queues were checked
+            // may have seen running still set
+            if (!anyQueued() || !running.compareAndSet(false, true)) {
+                return;
+            }
+        }
+    }
+
+    // rotations stay QUEUED (so they can be taken back) till their phase
+    // gets the axis, see start()
+    private List<Move> drain(int axis) {
+        List<Move> phase = new ArrayList<>();
+        Move move;
+        while (phase.size() < phaseLength && (move = queued.get(axis).poll()) != null) {
+            // the future of rotateAsync() may have been cancelled
+            if (!move.done.isDone() && move.state.get() == Move.QUEUED) {
+                phase.add(move);
+            }
+        }
+        return phase;
+    }
+
+    // starts rotations of the phase which were not taken back meanwhile
+    private static List<Move> start(List<Move> phase) {
+        List<Move> started = new ArrayList<>(phase.size());
+        for (Move move : phase) {
+            if (!move.done.isDone() && move.state.compareAndSet(Move.QUEUED, Move.STARTED)) {
+                started.add(move);
+            }
+        }
+        return started;
+    }
+
+    private boolean anyQueued() {
+        for (ConcurrentLinkedQueue<Move> queue : queued) {
+            if (!queue.isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void runPhase(int axis, List<Move> drained) {
+        long start = System.nanoTime();
+        List<Move> phase = start(drained);
+        HashMap<Integer, List<Move>> byLayer = new HashMap<>();
+        for (Move move : phase) {
+            byLayer.computeIfAbsent(move.axisLayer, layer -> new ArrayList<>()).add(move);
+        }
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        for (List<Move> layerMoves : byLayer.values()) {
+            tasks.add(ForkJoinTask.adapt(() -> {
+                for (Move move : layerMoves) {
+                    try {
+                        rotation.execute(move.side, move.layer);
+                    } catch (Throwable t) {
+                        move.failure = t;
+                    }
+                }
+            }));
+        }
+        try {
+            ForkJoinTask.invokeAll(tasks);
+        } finally {
+            scheduler.exit(axis, 0, size - 1);
+        }
+
+        long nanos = System.nanoTime() - start;
+        phases.incrementAndGet();
+        rotations.addAndGet(phase.size());
+        layers.addAndGet(byLayer.size());
+        longestPhase.accumulateAndGet(phase.size(), Math::max);
+        phaseNanos.addAndGet(nanos);
+        // completed only after the phase, so that code waiting for them
+        // cannot hold the phase up
+        for (Move move : phase) {
+            if (move.failure == null) {
+                move.done.complete(null);
+            } else {
+                move.done.completeExceptionally(move.failure);
+            }
+        }
+
+        nextPhase();
+    }
+}
@@ -0,0 +1,54 @@
+package concurrentcube;
+
+// statistics of phases executed by a cube in phase mode,
+// see CubeOptions.phases()
+public class PhaseStatistics {
+    private final long phases;
+    private final long rotations;
+    private final long layers;
+    private final long longestPhase;
+    private final long phaseNanos;
+
+    PhaseStatistics(long phases, long rotations, long layers, long longestPhase, long phaseNanos) {
+        this.phases = phases;
+        this.rotations = rotations;
+        this.layers = layers;
+        this.longestPhase = longestPhase;
+        this.phaseNanos = phaseNanos;
+    }
+
+    public long getPhases() {
+        return phases;
+    }
+
+    public long getRotations() {
+        return rotations;
+    }
+
+    // the most rotations executed in one phase
+    public long getLongestPhase() {
+        return longestPhase;
+    }
+
+    public double getAverageRotationsPerPhase() {
+        return phases == 0 ? 0 : (double) rotations / phases;
+    }
+
+    // how many layers were rotated in parallel in an average phase
+    public double getAverageLayersPerPhase() {
+        return phases == 0 ? 0 : (double) layers / phases;
+    }
+
+    public double getAveragePhaseMillis() {
+        return phases == 0 ? 0 : phaseNanos / 1e6 / phases;
+    }
+
+    @Override
+    public String toString() {
+        return "phases: " + phases + ", rotations: " + rotations
+                + ", longest phase: " + longestPhase
+                + ", rotations per phase: " + getAverageRotationsPerPhase()
+                + ", layers per phase: " + getAverageLayersPerPhase()
+                + ", ms per phase: " + getAveragePhaseMillis();
+    }
+}
@@ -0,0 +1,22 @@
+package concurrentcube;
+
+// the default policy: once other groups wait the running group takes no
+// more operations, after it finishes the groups lastGroup + 1, + 2, + 3,
+// lastGroup get the cube in this order
+public class RoundRobinPolicy implements SchedulingPolicy {
+    @Override
+    public int next(int lastGroup, int[] waiting, long[] oldestWait) {
+        for (int i = 1; i <= 4; i++) {
+            int group = (lastGroup + i) % 4;
+            if (waiting[group] > 0) {
+                return group;
+            }
+        }
+        return lastGroup;
+    }
+
+    @Override
+    public boolean mayJoin(int group, int[] waiting, long[] oldestWait, long turnAdmissions) {
+        return false;
+    }
+}
@@ -0,0 +1,416 @@
+package concurrentcube;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+// decides when operations on the cube may run;
+// operations are in groups: rotate() on axis 0, 1 or 2 and show() (group 3),
+// axis_i crosses side i;
+// only one group runs at a time, operations of an axis run concurrently
+// as long as the ranges of layers they hold do not overlap;
+// which group goes next when more of them wait is up to SchedulingPolicy
+//
+// while nobody waits, operations get in and out only with atomic updates
+// of state and of the layers they hold, so rotations on different layers
+// of one axis never take a shared lock;
+// once somebody has to wait, newcomers queue up behind mutex and the
+// finishing operations let the waiting ones in
+class Scheduler {
+    static final int SHOW = 3;
+
+    // state packs: the running group (bits 0-1, the last one when nothing runs),
+    // how many operations of it are running (bits 2-31)
+    // and how many operations are waiting (bits 32-63)
+    private static final long GROUP_MASK = 3;
+    private static final int COUNT_SHIFT = 2;
+    private static final long COUNT_MASK = (1L << 30) - 1;
+    private static final int WAITING_SHIFT = 32;
+
+    private static final VarHandle STATE;
+    private static final VarHandle LAYER = MethodHandles.arrayElementVarHandle(int[].class);
+
+    static {
+        try {
+            STATE = MethodHandles.lookup().findVarHandle(Scheduler.class, "state", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private volatile long state = SHOW;
+
+    // informs if a rotation holds the layer of the axis (0 or 1),
+    // accessed only through LAYER
+    private final int[][] activeLayer;
+
+    // informs how many threads are waiting for operations in each group,
+    // guarded by mutex
+    private final int[] waitingGroup = new int[4];
+    // waiting operations of each group in order of arrival, guarded by mutex
+    private final ArrayDeque<Request>[] waiting;
+
+    private final Semaphore mutex = new Semaphore(1, true);
+    // asynchronous operations let in while holding mutex,
+    // they are started after releasing it
+    private final ArrayList<Runnable> started = new ArrayList<>();
+
+    // gets wait times and handoffs, null unless metrics are collected
+    private final Metrics metrics;
+
+    private final SchedulingPolicy policy;
+    // since when the first waiting operation of each group waits,
+    // filled for the policy, guarded by mutex
+    private final long[] oldestWait = new long[4];
+    // how many operations the running group let in while others waited
+    // since it took the cube over, guarded by mutex
+    private long turnAdmissions;
+
+    // operation waiting for its turn
+    private static class Request {
+        private final int group;
+        private final int fromLayer;
+        private final int toLayer;
+        // gives permit for executing the operation to the waiting thread,
+        // or starts it if nobody waits (the operation is asynchronous)
+        private final Semaphore permit;
+        private final Runnable whenAdmitted;
+        // when the operation started waiting
+        private final long queuedAt;
+        // whether metrics count its admission
+        private final boolean counted;
+        // guarded by mutex
+        private boolean admitted;
+
+        private Request(int group, int fromLayer, int toLayer, Runnable whenAdmitted, long queuedAt,
+                        boolean counted) {
+            this.group = group;
+            this.fromLayer = fromLayer;
+            this.toLayer = toLayer;
+            this.whenAdmitted = whenAdmitted;
+            this.permit = whenAdmitted == null ? new Semaphore(0) : null;
+            this.queuedAt = queuedAt;
+            this.counted = counted;
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    Scheduler(int size, Metrics metrics, SchedulingPolicy policy) {
+        this.metrics = metrics;
+        this.policy = policy;
+        activeLayer = new int[3][size];
+        waiting = new ArrayDeque[4];
+        for (int group = 0; group < 4; group++) {
+            waiting[group] = new ArrayDeque<>();
+        }
+    }
+
+    private static int group(long state) {
+        return (int) (state & GROUP_MASK);
+    }
+
+    private static long count(long state) {
+        return (state >>> COUNT_SHIFT) & COUNT_MASK;
+    }
+
+    private static long waitingCount(long state) {
+        return state >>> WAITING_SHIFT;
+    }
+
+    private static long pack(int group, long count, long waitingCount) {
+        return group | count << COUNT_SHIFT | waitingCount << WAITING_SHIFT;
+    }
+
+    // waits till the operation of the group holding layers
+    // fromLayer..toLayer (ignored for show()) may run
+    void enter(int group, int fromLayer, int toLayer) throws InterruptedException {
+        enter(group, fromLayer, toLayer, true);
+    }
+
+    // like enter(), but the admission is left out of metrics
+    // (for reads which are not operations of the group and for
+    // a flat combiner, which counts the operations it executes)
+    void enterUncounted(int group, int fromLayer, int toLayer) throws InterruptedException {
+        enter(group, fromLayer, toLayer, false);
+    }
+
+    private void enter(int group, int fromLayer, int toLayer, boolean counted)
+            throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        if (tryEnterAlone(group, fromLayer, toLayer, counted)) {
+            return;
+        }
+
+        Request request = new Request(group, fromLayer, toLayer, null, System.nanoTime(), counted);
+        queue(request);
+        try {
+            request.permit.acquire();
+        } catch (InterruptedException e) {
+            withdraw(request, false);
+            throw e;
+        }
+    }
+
+    // like enter(), but gives up after the timeout and returns false;
+    // with no timeout the operation gets in only if it may run at once
+    // and nobody waits
+    boolean tryEnter(int group, int fromLayer, int toLayer, long timeoutNanos)
+            throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        if (tryEnterAlone(group, fromLayer, toLayer, true)) {
+            return true;
+        }
+        if (timeoutNanos <= 0) {
+            return false;
+        }
+
+        Request request = new Request(group, fromLayer, toLayer, null, System.nanoTime(), true);
+        queue(request);
+        boolean admitted;
+        try {
+            admitted = request.permit.tryAcquire(timeoutNanos, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            withdraw(request, false);
+            throw e;
+        }
+        if (!admitted) {
+            // it may have been let in after the timeout
+            admitted = withdraw(request, true);
+            if (admitted) {
+                request.permit.acquireUninterruptibly();
+            }
+        }
+        return admitted;
+    }
+
+    // takes the waiting operation back, unless it has already been let in;
+    // an operation let in is kept when keepAdmitted is set and returns true
+    private boolean withdraw(Request request, boolean keepAdmitted) {
+        mutex.acquireUninterruptibly();
+        if (request.admitted) {
+            mutex.release();
+            if (!keepAdmitted) {
+                exit(request.group, request.fromLayer, request.toLayer);
+            }
+            return true;
+        }
+        waiting[request.group].remove(request);
+        waitingGroup[request.group]--;
+        addWaiting(-1);
+        dispatch();
+        unlock();
+        return false;
+    }
+
+    // calls whenAdmitted once the operation may run, without waiting for it;
+    // whenAdmitted should not block (it is called by the thread letting
+    // the operation in) and the operation has to call exit() when it is done
+    void enterLater(int group, int fromLayer, int toLayer, Runnable whenAdmitted) {
+        if (tryEnterAlone(group, fromLayer, toLayer, true)) {
+            whenAdmitted.run();
+        } else {
+            queue(new Request(group, fromLayer, toLayer, whenAdmitted, System.nanoTime(), true));
+        }
+    }
+
+    // the group of the running operations, -1 if nothing runs
+    int runningGroup() {
+        long current = state;
+        return count(current) > 0 ? group(current) : -1;
+    }
+
+    // how many operations of each group are waiting
+    int[] waitingCounts() {
+        mutex.acquireUninterruptibly();
+        int[] result = waitingGroup.clone();
+        mutex.release();
+        return result;
+    }
+
+    private void queue(Request request) {
+        mutex.acquireUninterruptibly();
+        waiting[request.group].add(request);
+        waitingGroup[request.group]++;
+        addWaiting(1);
+        dispatch();
+        unlock();
+    }
+
+    // releases mutex, then starts the asynchronous operations let in meanwhile
+    private void unlock() {
+        if (started.isEmpty()) {
+            mutex.release();
+            return;
+        }
+        Runnable[] toStart = started.toArray(new Runnable[0]);
+        started.clear();
+        mutex.release();
+        for (Runnable operation : toStart) {
+            operation.run();
+        }
+    }
+
+    // finishes the operation and lets the next ones in
+    void exit(int group, int fromLayer, int toLayer) {
+        releaseLayers(group, fromLayer, toLayer);
+        leave();
+    }
+
+    // joins the running group if nobody waits, without taking mutex
+    private boolean tryEnterAlone(int group, int fromLayer, int toLayer, boolean counted) {
+        long current;
+        do {
+            current = state;
+            if (waitingCount(current) > 0 || (count(current) > 0 && group(current) != group)) {
+                return false;
+            }
+        } while (!STATE.compareAndSet(this, current, pack(group, count(current) + 1, 0)));
+
+        if (claimLayers(group, fromLayer, toLayer)) {
+            if (metrics != null && counted) {
+                metrics.admitted(group, 0);
+                if (group(current) != group) {
+                    metrics.handedOff(group);
+                }
+            }
+            return true;
+        }
+        leave();
+        return false;
+    }
+
+    // leaves the running group, lets the waiting operations in if there are any
+    private void leave() {
+        long current;
+        do {
+            current = state;
+        } while (!STATE.compareAndSet(this, current,
+                pack(group(current), count(current) - 1, waitingCount(current))));
+
+        if (waitingCount(current) > 0) {
+            mutex.acquireUninterruptibly();
+            dispatch();
+            unlock();
+        }
+    }
+
+    private void addWaiting(int delta) {
+        long current;
+        do {
+            current = state;
+        } while (!STATE.compareAndSet(this, current,
+                pack(group(current), count(current), waitingCount(current) + delta)));
+    }
+
+    private boolean claimLayers(int group, int fromLayer, int toLayer) {
+        if (group == SHOW) {
+            return true;
+        }
+        for (int layer = fromLayer; layer <= toLayer; layer++) {
+            if (!LAYER.compareAndSet(activeLayer[group], layer, 0, 1)) {
+                releaseLayers(group, fromLayer, layer - 1);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void releaseLayers(int group, int fromLayer, int toLayer) {
+        if (group == SHOW) {
+            return;
+        }
+        for (int layer = fromLayer; layer <= toLayer; layer++) {
+            LAYER.setVolatile(activeLayer[group], layer, 0);
+        }
+    }
+
+    private boolean othersWaiting(int group) {
+        for (int other = 0; other < 4; other++) {
+            if (other != group && waitingGroup[other] > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // lets in waiting operations, must be called holding mutex;
+    // while a group runs only its own operations may join it (while
+    // another group waits only if the policy lets them), after it finishes
+    // the policy picks the next waiting group
+    private void dispatch() {
+        long current = state;
+        int lastGroup = group(current);
+        if (count(current) > 0) {
+            if (waitingGroup[lastGroup] > 0 && (!othersWaiting(lastGroup)
+                    || policy.mayJoin(lastGroup, waitingGroup, fillOldestWait(), turnAdmissions))) {
+                letIn(lastGroup);
+            }
+            return;
+        }
+        if (waitingCount(current) > 0) {
+            int group = policy.next(lastGroup, waitingGroup, fillOldestWait());
+            if (group < 0 || group > 3 || waitingGroup[group] == 0) {
+                throw new IllegalStateException("policy picked group " + group
+                        + " which has no waiting operations");
+            }
+            letIn(group);
+        }
+    }
+
+    private long[] fillOldestWait() {
+        for (int group = 0; group < 4; group++) {
+            Request first = waiting[group].peekFirst();
+            oldestWait[group] = first == null ? 0 : first.queuedAt;
+        }
+        return oldestWait;
+    }
+
+    // lets in every waiting operation of the group that does not
+    // overlap with the running ones, in order of arrival
+    private void letIn(int group) {
+        Iterator<Request> iterator = waiting[group].iterator();
+        while (iterator.hasNext()) {
+            Request request = iterator.next();
+            if (!claimLayers(group, request.fromLayer, request.toLayer)) {
+                continue;
+            }
+            long current;
+            do {
+                current = state;
+                if (count(current) > 0 && group(current) != group) {
+                    releaseLayers(group, request.fromLayer, request.toLayer);
+                    return;
+                }
+            } while (!STATE.compareAndSet(this, current,
+                    pack(group, count(current) + 1, waitingCount(current) - 1)));
+
+            iterator.remove();
+            waitingGroup[group]--;
+            request.admitted = true;
+            if (group(current) != group || count(current) == 0) {
+                turnAdmissions = 0;
+            } else if (othersWaiting(group)) {
+                turnAdmissions++;
+            }
+            if (metrics != null && request.counted) {
+                metrics.admitted(group, System.nanoTime() - request.queuedAt);
+                if (group(current) != group) {
+                    metrics.handedOff(group);
+                }
+            }
+            if (request.whenAdmitted == null) {
+                request.permit.release();
+            } else {
+                started.add(request.whenAdmitted);
+            }
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package concurrentcube;
+
+// decides which group of operations a cube lets in when more of them wait
+// (groups are the axes 0, 1, 2 of rotations and 3 for show());
+// it is asked only after somebody had to wait, holding the scheduler's
+// lock, so one policy object serves one cube; the arrays given are
+// indexed by group and must not be changed:
+// waiting - how many operations of the group wait,
+// oldestWait - since when (System.nanoTime()) the longest waiting
+// operation of the group waits, undefined if none waits
+public interface SchedulingPolicy {
+    // picks the group to let in after the running one finished,
+    // at least one group waits
+    int next(int lastGroup, int[] waiting, long[] oldestWait);
+
+    // informs if waiting operations of the running group may join it
+    // although operations of other groups wait; turnAdmissions is how
+    // many operations the group let in while others waited since it
+    // took the cube over
+    boolean mayJoin(int group, int[] waiting, long[] oldestWait, long turnAdmissions);
+}
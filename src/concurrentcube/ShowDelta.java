@@ -0,0 +1,89 @@
+package concurrentcube;
+
+import java.util.Collections;
+import java.util.List;
+
+// squares changed since a version of the cube, see Cube.showDelta()
+public class ShowDelta {
+    public enum Kind {
+        // the whole side, row by row
+        SIDE,
+        ROW,
+        COLUMN
+    }
+
+    // changed squares of a side, their colors as digits like in show()
+    public static class Segment {
+        private final int side;
+        private final Kind kind;
+        private final int index;
+        private final String colors;
+
+        Segment(int side, Kind kind, int index, String colors) {
+            this.side = side;
+            this.kind = kind;
+            this.index = index;
+            this.colors = colors;
+        }
+
+        public int getSide() {
+            return side;
+        }
+
+        public Kind getKind() {
+            return kind;
+        }
+
+        // the row or column, 0 for a side
+        public int getIndex() {
+            return index;
+        }
+
+        public String getColors() {
+            return colors;
+        }
+    }
+
+    private final int size;
+    private final long version;
+    private final List<Segment> segments;
+
+    ShowDelta(int size, long version, List<Segment> segments) {
+        this.size = size;
+        this.version = version;
+        this.segments = Collections.unmodifiableList(segments);
+    }
+
+    // version of the cube the delta leads to, pass it to the next showDelta()
+    public long getVersion() {
+        return version;
+    }
+
+    public List<Segment> getSegments() {
+        return segments;
+    }
+
+    // applies the delta to the result of show() (or of earlier deltas)
+    // taken at the version the delta was asked since
+    public String applyTo(String shown) {
+        char[] squares = shown.toCharArray();
+        for (Segment segment : segments) {
+            int sideStart = segment.side * size * size;
+            for (int i = 0; i < segment.colors.length(); i++) {
+                int square;
+                switch (segment.kind) {
+                    case ROW:
+                        square = segment.index * size + i;
+                        break;
+                    case COLUMN:
+                        square = i * size + segment.index;
+                        break;
+                    default:
+                        square = i;
+                }
+                squares[sideStart + square] = segment.colors.charAt(i);
+            }
+        }
+        return new String(squares);
+    }
+}
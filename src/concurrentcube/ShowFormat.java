@@ -0,0 +1,11 @@
+package concurrentcube;
+
+// formats of the cube's state written by Cube.show(channel, format)
+public enum ShowFormat {
+    // digits of colors like show(): side by side, row by row, column by column
+    TEXT,
+    // header ("CUBE", format version as one byte, size as int),
+    // then colors in the same order, 3 bits each, starting from the highest
+    // bits of every byte (the last byte is padded with zeros)
+    BINARY
+}
@@ -0,0 +1,140 @@
+package concurrentcube;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+// writes snapshots of the cube row by row through a direct buffer,
+// see ShowFormat for the formats
+class ShowWriter {
+    static final byte[] MAGIC = {'C', 'U', 'B', 'E'};
+    static final byte BINARY_VERSION = 1;
+    static final int HEADER_LENGTH = MAGIC.length + 1 + Integer.BYTES;
+
+    private static final int BUFFER = 1 << 16;
+    private static final int BITS = 3;
+
+    private ShowWriter() {
+    }
+
+    // writes the snapshot and releases its sides
+    static void write(Snapshot snapshot, ShowFormat format, WritableByteChannel channel)
+            throws IOException {
+        int size = snapshot.getSize();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER);
+        byte[] row = new byte[size];
+        // bits not yet written in the binary format, the oldest are the highest
+        long bits = 0;
+        int bitCount = 0;
+
+        if (format == ShowFormat.BINARY) {
+            buffer.put(MAGIC).put(BINARY_VERSION).putInt(size);
+        }
+        for (int side = 0; side < 6; side++) {
+            for (int rowIndex = 0; rowIndex < size; rowIndex++) {
+                snapshot.readRow(side, rowIndex, row);
+                for (int column = 0; column < size; column++) {
+                    if (format == ShowFormat.TEXT) {
+                        put(buffer, (byte) ('0' + row[column]), channel);
+                    } else {
+                        bits = bits << BITS | row[column];
+                        bitCount += BITS;
+                        if (bitCount >= Byte.SIZE) {
+                            bitCount -= Byte.SIZE;
+                            put(buffer, (byte) (bits >>> bitCount), channel);
+                        }
+                    }
+                }
+            }
+            snapshot.release(side);
+        }
+        if (bitCount > 0) {
+            put(buffer, (byte) (bits << (Byte.SIZE - bitCount)), channel);
+        }
+        flush(buffer, channel);
+    }
+
+    private static void put(ByteBuffer buffer, byte value, WritableByteChannel channel)
+            throws IOException {
+        if (!buffer.hasRemaining()) {
+            flush(buffer, channel);
+        }
+        buffer.put(value);
+    }
+
+    private static void flush(ByteBuffer buffer, WritableByteChannel channel) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    // takes rows of a state read in the binary format
+    // (colors holds the row only until it returns)
+    interface Rows {
+        void row(int side, int row, byte[] colors);
+    }
+
+    // reads the header of a state written in the binary format,
+    // returns the size of the cube
+    static int readHeader(ReadableByteChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        readFully(header, channel);
+        header.flip();
+        for (byte expected : MAGIC) {
+            if (header.get() != expected) {
+                throw new IOException("not a binary cube state");
+            }
+        }
+        byte version = header.get();
+        if (version != BINARY_VERSION) {
+            throw new IOException("unknown binary cube format version " + version);
+        }
+        int size = header.getInt();
+        if (size <= 0) {
+            throw new IOException("binary cube state of size " + size);
+        }
+        return size;
+    }
+
+    // reads the colors following the header row by row, side after side,
+    // without keeping more than a row of them
+    static void readRows(ReadableByteChannel channel, int size, Rows rows) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER);
+        buffer.flip();
+        byte[] colors = new byte[size];
+        long bits = 0;
+        int bitCount = 0;
+        for (int side = 0; side < 6; side++) {
+            for (int row = 0; row < size; row++) {
+                for (int column = 0; column < size; column++) {
+                    if (bitCount < BITS) {
+                        if (!buffer.hasRemaining()) {
+                            buffer.clear();
+                            if (channel.read(buffer) < 0) {
+                                throw new EOFException("binary cube state ends too early");
+                            }
+                            buffer.flip();
+                        }
+                        bits = bits << Byte.SIZE | (buffer.get() & 0xFF);
+                        bitCount += Byte.SIZE;
+                    }
+                    bitCount -= BITS;
+                    colors[column] = (byte) ((bits >>> bitCount) & ((1 << BITS) - 1));
+                }
+                rows.row(side, row, colors);
+            }
+        }
+    }
+
+    private static void readFully(ByteBuffer buffer, ReadableByteChannel channel) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("binary cube state ends too early");
+            }
+        }
+    }
+}
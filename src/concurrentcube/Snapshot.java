@@ -0,0 +1,95 @@
+package concurrentcube;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// state of the cube at one moment which can be read while rotations go on;
+// squares of every side are split into tiles of consecutive indices,
+// a tile is copied before the first rotation after the moment writes to it
+// (or when the snapshot reads it), so the snapshot reads only copies
+// taken before any later change
+class Snapshot {
+    private static final int TILE_SHIFT = 12;
+    private static final int TILE = 1 << TILE_SHIFT;
+    // marks a tile which will not be read any more, so it needs no copy
+    private static final byte[] DONE = new byte[0];
+
+    private final Storage squares;
+    private final int size;
+    private final long cells;
+    // orientation of the sides at the moment
+    private final long[] sideOffset;
+    private final long[] rowStep;
+    private final long[] columnStep;
+    // [side][tile]
+    private final AtomicReferenceArray<byte[]>[] tiles;
+
+    // must be called while no rotation runs
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    Snapshot(Storage squares, int size, long[] sideOffset, long[] rowStep, long[] columnStep) {
+        this.squares = squares;
+        this.size = size;
+        this.cells = (long) size * size;
+        this.sideOffset = sideOffset.clone();
+        this.rowStep = rowStep.clone();
+        this.columnStep = columnStep.clone();
+        int tilesPerSide = (int) ((cells + TILE - 1) >>> TILE_SHIFT);
+        tiles = new AtomicReferenceArray[6];
+        for (int side = 0; side < 6; side++) {
+            tiles[side] = new AtomicReferenceArray<>(tilesPerSide);
+        }
+    }
+
+    int getSize() {
+        return size;
+    }
+
+    // must be called before changing count squares of the side
+    // at indices start, start + step, ...
+    void preserve(int side, long start, long step, int count) {
+        int lastTile = -1;
+        for (int i = 0; i < count; i++, start += step) {
+            int tile = (int) (start >>> TILE_SHIFT);
+            if (tile != lastTile) {
+                tile(side, tile);
+                lastTile = tile;
+            }
+        }
+    }
+
+    private byte[] tile(int side, int tile) {
+        byte[] copy = tiles[side].get(tile);
+        if (copy != null) {
+            return copy;
+        }
+        long from = (long) tile << TILE_SHIFT;
+        copy = new byte[(int) Math.min(TILE, cells - from)];
+        squares.read(side, from, copy, 0, copy.length);
+        if (tiles[side].compareAndSet(tile, null, copy)) {
+            return copy;
+        }
+        return tiles[side].get(tile);
+    }
+
+    // reads one row of the side, the side must not be released yet
+    void readRow(int side, int row, byte[] target) {
+        long index = sideOffset[side] + row * rowStep[side];
+        long step = columnStep[side];
+        byte[] tile = null;
+        int lastTile = -1;
+        for (int column = 0; column < size; column++, index += step) {
+            int tileIndex = (int) (index >>> TILE_SHIFT);
+            if (tileIndex != lastTile) {
+                tile = tile(side, tileIndex);
+                lastTile = tileIndex;
+            }
+            target[column] = tile[(int) (index & (TILE - 1))];
+        }
+    }
+
+    // frees copies of the side, it will not be read any more
+    void release(int side) {
+        for (int tile = 0; tile < tiles[side].length(); tile++) {
+            tiles[side].set(tile, DONE);
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package concurrentcube;
+
+// keeps colors of the cube's squares;
+// every side is a flat array of size * size cells,
+// Cube decides at which index a square of the side is kept
+interface Storage {
+    int get(int side, long index);
+
+    void set(int side, long index, int color);
+
+    // copies length squares of the side starting at index into target
+    void read(int side, long index, byte[] target, int offset, int length);
+
+    // copies length squares from source to the side starting at index
+    void write(int side, long index, byte[] source, int offset, int length);
+
+    // relabels sides without moving squares:
+    // side s gets the squares side from[s] had
+    void permute(int[] from);
+}
@@ -0,0 +1,14 @@
+package concurrentcube;
+
+// when the move log of a durable cube is forced to disk,
+// see CubeOptions.durability()
+public enum SyncPolicy {
+    // never, the system writes the log back when it wants
+    // (rotations survive a crash of the process, not of the machine)
+    NONE,
+    // every sync interval, in the background
+    INTERVAL,
+    // before every rotation returns; rotations waiting for it together
+    // share one force of the log (group commit)
+    COMMIT
+}
@@ -0,0 +1,56 @@
+package concurrentcube;
+
+// switches groups as rarely as it can: the running group keeps taking
+// its operations while others wait, up to maxTurn of them, and the cube
+// goes to the group with the most waiting operations;
+// a group passed over maxPassed times in a row goes before the others,
+// so it waits for at most maxPassed + 3 turns of other groups
+public class ThroughputPolicy implements SchedulingPolicy {
+    private final long maxTurn;
+    private final int maxPassed;
+    // how many times in a row each group was passed over
+    private final int[] passed = new int[4];
+
+    public ThroughputPolicy(long maxTurn, int maxPassed) {
+        if (maxTurn < 0 || maxPassed < 0) {
+            throw new IllegalArgumentException("limits must not be negative, got "
+                    + maxTurn + " and " + maxPassed);
+        }
+        this.maxTurn = maxTurn;
+        this.maxPassed = maxPassed;
+    }
+
+    @Override
+    public int next(int lastGroup, int[] waiting, long[] oldestWait) {
+        int chosen = -1;
+        for (int i = 1; i <= 4; i++) {
+            int group = (lastGroup + i) % 4;
+            if (waiting[group] > 0 && (chosen < 0 || goesBefore(group, chosen, waiting))) {
+                chosen = group;
+            }
+        }
+
+        for (int group = 0; group < 4; group++) {
+            passed[group] = waiting[group] > 0 && group != chosen ? passed[group] + 1 : 0;
+        }
+        return chosen;
+    }
+
+    // groups passed over maxPassed times go first (the one passed over
+    // more times before), then the ones with more waiting operations
+    private boolean goesBefore(int group, int other, int[] waiting) {
+        boolean starving = passed[group] >= maxPassed;
+        if (starving != passed[other] >= maxPassed) {
+            return starving;
+        }
+        if (starving) {
+            return passed[group] > passed[other];
+        }
+        return waiting[group] > waiting[other];
+    }
+
+    @Override
+    public boolean mayJoin(int group, int[] waiting, long[] oldestWait, long turnAdmissions) {
+        return turnAdmissions < maxTurn;
+    }
+}